@@ -17,52 +17,187 @@
 package io.github.dibog;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.LoggerContextVO;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.spi.ContextAware;
 import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsAsync;
 import com.amazonaws.services.logs.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.util.Objects.requireNonNull;
 
 class AwsCWEventDump implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(AwsCWEventDump.class);
+    private static final long MAX_IDLE_WAIT = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_REQUEUED_BATCHES = 16;
 
-    private final RingBuffer<ILoggingEvent> queue;
+    /** Bounds the memory for the journal ranges of the events which didn't fit into the queue, 16 bytes each. */
+    private static final int MAX_EVICTED_RANGES = 65536;
+
+    /** Smaller drains are encoded by the sender alone, as handing them over costs more than it saves. */
+    private static final int MIN_PARALLEL_EVENTS = 32;
+
+    /** Longer file prefixes are shortened, so the file names keep below the usual limit of 255 characters. */
+    private static final int MAX_FILE_PREFIX = 160;
+
+    /** Estimated bytes per stack frame of an exception, which isn't rendered yet. */
+    private static final int FRAME_BYTES = 80;
+
+    /** Weighs an event by its encoded size, or estimates the size if it wasn't encoded yet. */
+    private static final RingBuffer.Weigher<ILoggingEvent> EVENT_WEIGHER = new RingBuffer.Weigher<ILoggingEvent>() {
+        @Override
+        public int weigh(ILoggingEvent aEvent) {
+            if(aEvent instanceof EncodedLoggingEvent) {
+                return ((EncodedLoggingEvent)aEvent).getEncodedBytes()+LogEventBatch.EVENT_OVERHEAD;
+            }
+
+            long size = LogEventBatch.EVENT_OVERHEAD;
+            String message = aEvent.getFormattedMessage();
+            if(message!=null) {
+                size += message.length();
+            }
+            for(IThrowableProxy t=aEvent.getThrowableProxy(); t!=null; t=t.getCause()) {
+                size += (t.getMessage()==null ? 0 : t.getMessage().length())
+                        + (long)t.getStackTraceElementProxyArray().length*FRAME_BYTES;
+            }
+            return (int)Math.min(size, Integer.MAX_VALUE);
+        }
+    };
+
+    private static final Comparator<ILoggingEvent> BY_TIMESTAMP = new Comparator<ILoggingEvent>() {
+        @Override
+        public int compare(ILoggingEvent a, ILoggingEvent b) {
+            return Long.compare(a.getTimeStamp(), b.getTimeStamp());
+        }
+    };
+
+    /** A log stream which log events were routed to, with the batch collected for it. */
+    private static final class Route {
+        final String groupName;
+        final String baseName;
+        final LogEventBatch batch = new LogEventBatch();
+        private String suffix;
+        private String streamName;
+
+        Route(String aGroupName, String aBaseName) {
+            groupName = aGroupName;
+            baseName = aBaseName;
+        }
+
+        String streamName(String aSuffix) {
+            // the suffix only changes with the rotation, so the identity is sufficient
+            if(aSuffix!=suffix) {
+                suffix = aSuffix;
+                streamName = StreamRouter.withSuffix(baseName, aSuffix);
+            }
+            return streamName;
+        }
+    }
+
+    private final EventQueue<ILoggingEvent> queue;
     private final LoggingEventToString layout;
     private final AwsConfig awsConfig;
     private final boolean createLogGroup;
-    private final boolean addMachineName;
+    private final String machineName;
     private final String groupName;
     private final String streamName;
     private final DateFormat dateFormat;
     private final ContextAware logContext;
     private final Date dateHolder = new Date();
+    private final RotationSchedule rotation;
+    private long nextRotation = Long.MIN_VALUE;
+    /** Machine name and date appended to the names of all log streams, null until the first rotation. */
+    private String suffix;
+    private String defaultStreamName;
+    private final StreamRouter router;
+    private final int maxRoutes;
+    /** The log streams log events were routed to, in the order of their last use. */
+    private final LinkedHashMap<Object, Route> routes = new LinkedHashMap<>(16, 0.75f, true);
+    private final long prewarmMs;
+    private final LogStreamCache streamCache;
+    private ScheduledExecutorService prewarmer = null;
+    private String prewarmName = null;
+    private Future<?> prewarmed = null;
     private final PutLogEventsRequest logEventReq;
+    private final LogEventBatch batch = new LogEventBatch();
+    private final long lingerNanos;
+    private final int maxBatchEvents;
+    private final long maxBatchBytes;
+    private final boolean asyncSend;
+    private final boolean virtualThreads;
+    private final long maxRetryNanos;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final Deque<PutLogEventsRequest> requeued = new ArrayDeque<>();
+    private final AwsLogMetrics metrics;
+    private final DiskSpool spool;
+    private final LogEventBatch replay = new LogEventBatch();
+    private final WriteAheadJournal journal;
+    private final ScheduledExecutorService journalSync;
+    private final long journalMaxBytes;
+    /** Journal ranges of the events which didn't fit into the queue, so they have to be read from the journal again.
+     * Added by the logging threads while holding its lock, together with the number of events.
+     */
+    private final JournalRanges evicted = new JournalRanges();
+    private final AtomicLong evictedEvents = new AtomicLong();
+    /** The evicted ranges the sender took over, read again from {@link #rereadPosition} in the one at {@link #rereadIndex}. */
+    private final JournalRanges rereading = new JournalRanges();
+    private int rereadIndex = 0;
+    private long rereadPosition;
+    private long rereadEvents = 0;
+    /** Journal ranges which are acknowledged once the requeued events are sent. */
+    private final JournalRanges deferredRanges = new JournalRanges();
+    private final boolean encodeOnAppend;
+    private final int encoderThreads;
+    private final ExecutorService encoderPool;
+    private final List<Future<?>> encoding = new ArrayList<>();
+    private ILoggingEvent[] drained = new ILoggingEvent[64];
+    private String[] rendered = new String[64];
 
     private volatile boolean done = false;
 
     private AWSLogs awsLogs;
+    private String currentGroupName = null;
     private String currentStreamName = null;
     private String nextToken = null;
+    private SharedAwsLogs sharedClient = null;
+    private Future<PutLogEventsResult> inFlight = null;
+    private PutLogEventsRequest inFlightRequest = null;
+    private final PutLogEventsRequest asyncRequest = new PutLogEventsRequest();
+    private final List<InputLogEvent> asyncEvents = new ArrayList<>();
+    private final JournalRanges inFlightRanges = new JournalRanges();
 
     public AwsCWEventDump( AwsLogAppender aAppender ) {
+        this(aAppender, aAppender.streamName);
+    }
+
+    public AwsCWEventDump( AwsLogAppender aAppender, String aStreamName ) {
         logContext = requireNonNull(aAppender, "appender");
         awsConfig = aAppender.awsConfig==null ? new AwsConfig(): aAppender.awsConfig;
-        queue = new RingBuffer<ILoggingEvent>(aAppender.queueLength);
         createLogGroup = aAppender.createLogGroup;
         groupName = requireNonNull(aAppender.groupName, "appender.groupName");
         logEventReq = new PutLogEventsRequest().withLogGroupName(groupName);
-        streamName = requireNonNull(aAppender.streamName, "appender.streamName");
+        streamName = requireNonNull(aStreamName, "appender.streamName");
 
         if (aAppender.layout==null) {
             layout = new LoggingEventToStringImpl();
@@ -78,22 +213,250 @@ class AwsCWEventDump implements Runnable {
 
         if (aAppender.dateFormat==null || aAppender.dateFormat.trim().isEmpty()) {
             dateFormat = null;
+            rotation = null;
+            suffix = "";
+            defaultStreamName = streamName;
         } else {
             dateFormat = new SimpleDateFormat(aAppender.dateFormat);
+            rotation = new RotationSchedule(aAppender.dateFormat, dateFormat.getTimeZone());
         }
 
-        this.addMachineName = aAppender.addMachineName;
+        // parsed before any file or thread is opened, so an invalid setting can't leak them
+        router = StreamRouter.create(aAppender.routes, aAppender.routeMdcKey);
+        // all lanes and stripes share the wait strategy, as there is only one consumer
+        WaitStrategy waitStrategy = WaitStrategy.forName(aAppender.waitStrategy);
+        OverflowPolicy admission = OverflowPolicy.forName(aAppender.overflowPolicy, aAppender.blockTimeoutMs, aAppender.overflowLevel);
+
+        // resolved only once, as it may need a DNS lookup
+        machineName = aAppender.addMachineName ? getMachineName() : null;
+        prewarmMs = Math.max(0, aAppender.rotationPrewarmMs);
+        maxRoutes = Math.max(1, aAppender.maxRoutes);
+
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, aAppender.lingerMs));
+        maxBatchEvents = aAppender.maxBatchEvents;
+        maxBatchBytes = aAppender.maxBatchBytes;
+        asyncSend = aAppender.asyncSend;
+        virtualThreads = aAppender.virtualThreads;
+        maxRetryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, aAppender.maxRetryMs));
+        metrics = aAppender.metrics;
+        streamCache = aAppender.streamCache;
+        encoderThreads = Math.max(0, aAppender.encoderThreads);
+        encoderPool = encoderThreads>0 ? Executors.newFixedThreadPool(encoderThreads, new DaemonThreads("aws-log-encoder-")) : null;
+
+        journal = openJournal(aAppender);
+        journalMaxBytes = Math.max(0, aAppender.journalMaxBytes);
+        journalSync = journal!=null && aAppender.journalFsyncMs>0 ? startJournalSync(aAppender.journalFsyncMs) : null;
+        // the journal needs the rendered events anyway
+        encodeOnAppend = aAppender.encodeOnAppend || journal!=null;
+
+        spool = openSpool(aAppender);
+        RingBuffer.Overflow<ILoggingEvent> overflow = null;
+        if(spool!=null || journal!=null) {
+            overflow = new RingBuffer.Overflow<ILoggingEvent>() {
+                @Override
+                public boolean overflow(ILoggingEvent aEvent) {
+                    return keep(aEvent);
+                }
+            };
+        }
+        EventQueue<ILoggingEvent> lane = newQueue(aAppender, aAppender.queueLength, waitStrategy, overflow, admission);
+        if(aAppender.priorityQueueLength>0) {
+            EventQueue<ILoggingEvent> priorityLane = newQueue(aAppender, aAppender.priorityQueueLength, waitStrategy, overflow, admission);
+            queue = new PriorityLanes(priorityLane, lane, waitStrategy, OverflowPolicy.toLevel(aAppender.priorityLevel, "priorityLevel"));
+        }
+        else {
+            queue = lane;
+        }
+        metrics.queues.add(queue);
+    }
+
+    /** Creates a ring buffer, or stripes of ring buffers which share the length and the byte limit,
+     * or one ring buffer per level for the level-aware overflow policy.
+     */
+    private static EventQueue<ILoggingEvent> newQueue(AwsLogAppender aAppender, int aLength, WaitStrategy aWaitStrategy,
+                                                      RingBuffer.Overflow<ILoggingEvent> aOverflow, OverflowPolicy aAdmission) {
+        long maxQueueBytes = Math.max(0, aAppender.maxQueueBytes);
+        if(aAdmission instanceof OverflowPolicy.LevelAware) {
+            return new LevelLanes(aLength, aWaitStrategy, aOverflow, EVENT_WEIGHER, maxQueueBytes, BY_TIMESTAMP,
+                    (OverflowPolicy.LevelAware)aAdmission);
+        }
+
+        int stripes = Math.max(1, aAppender.stripes);
+        if(stripes==1) {
+            return new RingBuffer<>(aLength, aWaitStrategy, aOverflow, EVENT_WEIGHER, maxQueueBytes, aAdmission);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        RingBuffer<ILoggingEvent>[] rings = new RingBuffer[stripes];
+        for(int i=0; i<stripes; ++i) {
+            rings[i] = new RingBuffer<>(Math.max(1, (aLength+stripes-1)/stripes), aWaitStrategy, aOverflow,
+                    EVENT_WEIGHER, maxQueueBytes==0 ? 0 : Math.max(1, maxQueueBytes/stripes), aAdmission);
+        }
+        return new StripedQueue<>(rings, BY_TIMESTAMP, aWaitStrategy);
+    }
+
+    private DiskSpool openSpool(AwsLogAppender aAppender) {
+        if(aAppender.spoolDirectory==null || aAppender.spoolDirectory.trim().isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new DiskSpool(new File(aAppender.spoolDirectory.trim()), filePrefix(groupName, streamName),
+                    aAppender.spoolSegments, aAppender.spoolSegmentBytes);
+        }
+        catch(IOException | IllegalArgumentException e) {
+            logContext.addError("Couldn't open the spool in '"+aAppender.spoolDirectory+"', continuing without it.", e);
+            return null;
+        }
+    }
+
+    /** Names the files of a log stream, so appenders which share a directory never share their files.
+     * All characters but letters, digits and <code>_</code> are escaped, as the names of log groups
+     * and log streams may contain characters file systems don't allow.
+     *
+     * @return the prefix of the file names, unique per log group and log stream
+     */
+    static String filePrefix(String aGroupName, String aStreamName) {
+        StringBuilder prefix = new StringBuilder();
+        escape(aGroupName, prefix);
+        prefix.append('~');
+        escape(aStreamName, prefix);
+        if(prefix.length()<=MAX_FILE_PREFIX) {
+            return prefix.toString();
+        }
+        // the digest keeps long names unique
+        String digest = AwsConfig.digest(prefix.toString());
+        prefix.setLength(MAX_FILE_PREFIX-digest.length()-1);
+        return prefix.append('~').append(digest).toString();
+    }
+
+    private static void escape(String aName, StringBuilder aTarget) {
+        for(int i=0; i<aName.length(); ++i) {
+            char c = aName.charAt(i);
+            if(c>='a' && c<='z' || c>='A' && c<='Z' || c>='0' && c<='9' || c=='_') {
+                aTarget.append(c);
+            }
+            else {
+                aTarget.append('%').append(String.format("%04x", (int)c));
+            }
+        }
+    }
+
+    private WriteAheadJournal openJournal(AwsLogAppender aAppender) {
+        if(aAppender.journalDirectory==null || aAppender.journalDirectory.trim().isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new WriteAheadJournal(new File(aAppender.journalDirectory.trim()), filePrefix(groupName, streamName),
+                    aAppender.journalSegmentBytes);
+        }
+        catch(IOException e) {
+            logContext.addError("Couldn't open the journal in '"+aAppender.journalDirectory+"', continuing without it.", e);
+            return null;
+        }
+    }
+
+    /** Forces the journal periodically to the disk, so that the logging threads never wait for it. */
+    private ScheduledExecutorService startJournalSync(long aIntervalMs) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreads("aws-log-journal-sync-"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.sync();
+                }
+                catch(IOException e) {
+                    logContext.addError("Exception while syncing the journal.", e);
+                }
+            }
+        }, aIntervalMs, aIntervalMs, TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    /** Called by the logging threads for events which don't fit into the queue anymore.
+     *
+     * @return true if the event is still in the journal or could be spooled
+     */
+    private boolean keep(ILoggingEvent aEvent) {
+        if(aEvent instanceof EncodedLoggingEvent && ((EncodedLoggingEvent)aEvent).getJournalStart()>=0) {
+            // the sender reads it from the journal again, as the checkpoint must not pass it
+            EncodedLoggingEvent event = (EncodedLoggingEvent)aEvent;
+            synchronized(evicted) {
+                if(evicted.count()<MAX_EVICTED_RANGES) {
+                    evicted.add(event.getJournalStart(), event.getJournalEnd());
+                    evictedEvents.incrementAndGet();
+                    return true;
+                }
+            }
+            // too many to remember, so it is given up as without a journal
+            try {
+                journal.acknowledge(event.getJournalStart(), event.getJournalEnd());
+            }
+            catch(IOException e) {
+                logContext.addError("Exception while writing the journal checkpoint.", e);
+            }
+        }
+        return spool!=null && toSpool(aEvent);
+    }
+
+    private boolean toSpool(ILoggingEvent aEvent) {
+        if(aEvent.getLoggerContextVO()==null) {
+            return false;
+        }
+        return toSpool(aEvent.getTimeStamp(), encoded(aEvent));
+    }
+
+    private boolean toSpool(long aTimestamp, String aMessage) {
+        try {
+            if(spool.append(aTimestamp, aMessage)) {
+                metrics.spooledEvents.incrementAndGet();
+                return true;
+            }
+        }
+        catch(IOException e) {
+            logContext.addError("Exception while writing into the spool.", e);
+        }
+        return false;
     }
 
     private void closeStream() {
+        // the sequence token of the old stream must not leak into the new one
+        awaitInFlight();
+        if(currentStreamName!=null) {
+            streamCache.update(currentGroupName, currentStreamName, nextToken);
+        }
         currentStreamName = null;
     }
 
-    private void openStream(String aNewStreamName) {
+    /** Makes the log stream the one the requests go to.
+     *
+     * @return false if it is a routed log stream which couldn't be opened
+     */
+    private boolean useStream(String aGroupName, String aStreamName) {
+        if(aStreamName.equals(currentStreamName) && aGroupName.equals(currentGroupName)) {
+            return true;
+        }
+        closeStream();
+        return openStream(aGroupName, aStreamName);
+    }
+
+    /** Makes the routed log stream the one the requests go to, or the default log stream if it can't be opened. */
+    private void useRoutedStream(String aGroupName, String aStreamName) {
+        if(!useStream(aGroupName, aStreamName)) {
+            ensureStream();
+        }
+    }
+
+    private boolean openStream(String aGroupName, String aNewStreamName) {
 
         if(awsLogs==null) {
             try {
-                awsLogs = awsConfig.createAWSLogs();
+                // shared with the other appenders, the synchronous requests are run by this thread anyway
+                sharedClient = SharedAwsLogs.acquire(awsConfig, virtualThreads);
+                awsLogs = sharedClient.client();
+                // the rotation before couldn't prewarm without the client
+                prewarm(System.currentTimeMillis(), nextRotation);
             }
             catch(Exception e) {
                 logContext.addError("Exception while opening AWSLogs. Shutting down the cloud watch logger.", e);
@@ -101,115 +464,619 @@ class AwsCWEventDump implements Runnable {
             }
         }
 
-        if(createLogGroup) {
-            if (findLogGroup(groupName)==null) {
-                logContext.addInfo("creating log group '"+groupName+"'");
+        String token = null;
+        try {
+            if(createLogGroup) {
                 try {
-                    awsLogs.createLogGroup(new CreateLogGroupRequest(groupName));
+                    streamCache.ensureGroup(awsLogs, aGroupName);
                 }
                 catch(OperationAbortedException e) {
-                    logContext.addError("couldn't create log group '"+groupName+"': "+e.getLocalizedMessage());
+                    logContext.addError("couldn't create log group '"+aGroupName+"': "+e.getLocalizedMessage());
                 }
             }
+            token = streamCache.openStream(awsLogs, aGroupName, aNewStreamName);
+        }
+        catch(Exception e) {
+            if(!aGroupName.equals(groupName) || !aNewStreamName.equals(defaultStreamName)) {
+                // e.g. an MDC value AWS doesn't accept, which must not stop the other log streams
+                logContext.addError("Exception while opening log stream ( "+aGroupName+" / "+aNewStreamName+" ). Sending its log events into the default log stream.", e);
+                return false;
+            }
+            logContext.addError("Exception while opening log stream ( "+aGroupName+" / "+aNewStreamName+" ). Shutting down the cloud watch logger.", e);
+            shutdown();
         }
+        switchStream(aGroupName, aNewStreamName, token);
+        return true;
+    }
 
-        LogStream stream = findLogStream(groupName, aNewStreamName);
-        if(stream==null) {
-            try {
-                logContext.addInfo("creating log stream '"+streamName+"'");
-                awsLogs.createLogStream(new CreateLogStreamRequest(groupName, aNewStreamName));
+    private void switchStream(String aGroupName, String aNewStreamName, String aToken) {
+        nextToken = aToken;
+        logEventReq.withLogGroupName(aGroupName).withLogStreamName(aNewStreamName);
+        currentGroupName = aGroupName;
+        currentStreamName = aNewStreamName;
+    }
+
+    /** Creates the log stream of the next rotation in the background shortly before it is needed,
+     * so that the rotation itself doesn't have to wait for AWS.
+     */
+    private void prewarm(long aNow, long aRotation) {
+        if(prewarmMs==0 || awsLogs==null || aRotation==Long.MAX_VALUE || aRotation-aNow<prewarmMs) {
+            // for short periods the stream wouldn't be created much earlier than during the rotation
+            return;
+        }
+
+        final String name = streamName+suffixAt(aRotation);
+        if(name.equals(defaultStreamName) || name.equals(prewarmName)) {
+            return;
+        }
+
+        if(prewarmer==null) {
+            prewarmer = Executors.newSingleThreadScheduledExecutor(new DaemonThreads("aws-log-prewarm-"));
+        }
+        if(prewarmed!=null) {
+            prewarmed.cancel(false);
+        }
+        prewarmName = name;
+        prewarmed = prewarmer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // the stream cache and the client are thread-safe, the rest of the dump isn't
+                try {
+                    logContext.addInfo("opening log stream '"+name+"' ahead of the rotation");
+                    streamCache.openStream(awsLogs, groupName, name);
+                }
+                catch(Exception e) {
+                    logContext.addWarn("Couldn't open log stream '"+name+"' ahead of the rotation: "+e.getLocalizedMessage());
+                }
             }
-            catch(Exception e) {
-                logContext.addError("Exception while creating log stream ( "+groupName+" / "+aNewStreamName+" ). Shutting down the cloud watch logger.", e);
-                shutdown();
+        }, aRotation-prewarmMs-aNow, TimeUnit.MILLISECONDS);
+    }
+
+    /** Waits until the prewarmed log stream is in the stream cache, unless the prewarm hasn't even started. */
+    private void awaitPrewarmed() {
+        Future<?> future = prewarmed;
+        prewarmed = null;
+        prewarmName = null;
+        if(future==null || future.cancel(false)) {
+            return;
+        }
+
+        try {
+            // it's either done or already talking to AWS, so waiting isn't slower than opening the stream again
+            future.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e) {
+            // already reported by the prewarm
+        }
+    }
+
+    private boolean log(LogEventBatch aBatch) {
+        rotate();
+        return log(groupName, defaultStreamName, aBatch);
+    }
+
+    private void log(Route aRoute) {
+        rotate();
+        log(aRoute.groupName, aRoute.streamName(suffix), aRoute.batch);
+    }
+
+    /** @return false if AWS wasn't reachable and some events had to be requeued */
+    private boolean log(String aGroupName, String aStreamName, LogEventBatch aBatch) {
+
+        // AWS rejects requests which are too large or not in chronological order,
+        // so the batch is sorted and sent in compliant chunks
+        aBatch.sortByTimestamp();
+        List<InputLogEvent> events = aBatch.events();
+        boolean available = resendRequeued();
+        useRoutedStream(aGroupName, aStreamName);
+        int from = 0;
+        while(from<events.size()) {
+            int to = aBatch.chunkEnd(from);
+            if(available) {
+                available = putLogEvents(events.subList(from, to));
+            }
+            else {
+                // AWS is not reachable right now, don't spend the retry time on every chunk
+                requeue(events.subList(from, to));
             }
-            nextToken = null;
+            from = to;
+        }
+
+        if(inFlight!=null) {
+            inFlightRanges.addAll(aBatch.journalRanges());
         }
         else {
-            nextToken = stream.getUploadSequenceToken();
+            acknowledge(aBatch.journalRanges());
         }
+        return available;
+    }
 
-        logEventReq.withLogStreamName(aNewStreamName);
-        currentStreamName = aNewStreamName;
+    /** Acknowledges the journal ranges of events which AWS accepted, or which were given up. */
+    private void acknowledge(JournalRanges aRanges) {
+        if(journal==null || aRanges.isEmpty()) {
+            return;
+        }
+        if(!requeued.isEmpty()) {
+            // requeued events are only kept in memory, so they still need the journal
+            deferredRanges.addAll(aRanges);
+            return;
+        }
 
+        try {
+            journal.acknowledge(deferredRanges);
+            deferredRanges.clear();
+            journal.acknowledge(aRanges);
+        }
+        catch(IOException e) {
+            logContext.addError("Exception while writing the journal checkpoint.", e);
+        }
     }
 
-    private LogGroup findLogGroup(String aName) {
-        DescribeLogGroupsResult result = awsLogs.describeLogGroups(
-                new DescribeLogGroupsRequest()
-                        .withLogGroupNamePrefix(groupName)
-        );
-        for (LogGroup group : result.getLogGroups()) {
-            if (group.getLogGroupName().equals(aName)) {
-                return group;
+    /** Sends the events a previous run journaled, but which weren't acknowledged by AWS anymore. */
+    private void replayJournal() {
+        long position = journal.checkpoint();
+        final long end = journal.recoveredEnd();
+        while(!done && position<end) {
+            replay.clear();
+            long next;
+            try {
+                next = journal.read(position, end, replay, LogEventBatch.MAX_REQUEST_EVENTS, LogEventBatch.MAX_REQUEST_BYTES);
+            }
+            catch(IOException e) {
+                logContext.addError("Exception while reading the journal.", e);
+                break;
             }
+            if(next==position) {
+                break;
+            }
+
+            log(replay);
+            metrics.replayedEvents.addAndGet(replay.size());
+            position = next;
         }
-        return null;
+        replay.clear();
     }
 
-    private LogStream findLogStream(String aGroupName, String aStreamName) {
-        try {
-            DescribeLogStreamsResult result = awsLogs.describeLogStreams(
-                    new DescribeLogStreamsRequest(groupName)
-                            .withLogStreamNamePrefix(aStreamName)
-            );
-            for (LogStream stream : result.getLogStreams()) {
-                if (stream.getLogStreamName().equals(aStreamName)) {
-                    return stream;
+    /** Sends the events which didn't fit into the queue, read back from the journal. */
+    private void replayEvicted() {
+        replay.clear();
+        while(replay.size()<LogEventBatch.MAX_REQUEST_EVENTS && replay.byteSize()<LogEventBatch.MAX_REQUEST_BYTES
+                && nextEvicted()) {
+            long end = rereading.end(rereadIndex);
+            int before = replay.size();
+            long next = rereadPosition;
+            try {
+                next = journal.read(rereadPosition, end, replay, LogEventBatch.MAX_REQUEST_EVENTS-before,
+                        LogEventBatch.MAX_REQUEST_BYTES-replay.byteSize());
+            }
+            catch(IOException e) {
+                logContext.addError("Exception while reading the journal.", e);
+            }
+            rereadEvents -= replay.size()-before;
+
+            if(next==rereadPosition) {
+                // given up, it must not hold the checkpoint back, nextEvicted() counts its events as dropped
+                logContext.addError("Couldn't read log events from the journal again.");
+                try {
+                    journal.acknowledge(rereadPosition, end);
                 }
+                catch(IOException e) {
+                    logContext.addError("Exception while writing the journal checkpoint.", e);
+                }
+                next = end;
+            }
+            if(next<end) {
+                rereadPosition = next;
+            }
+            else if(++rereadIndex<rereading.count()) {
+                rereadPosition = rereading.start(rereadIndex);
             }
         }
-        catch(Exception e) {
-            logContext.addError("Exception while trying to describe log stream ( "+aGroupName+"/"+aStreamName+" ).  Shutting down the cloud watch logger.", e);
-            shutdown();
+
+        if(!replay.isEmpty()) {
+            log(replay);
+            metrics.replayedEvents.addAndGet(replay.size());
+        }
+        replay.clear();
+    }
+
+    /** Continues with the evicted ranges the logging threads added meanwhile, once the sender read the ones it took over.
+     *
+     * @return true if there is an evicted range left to read
+     */
+    private boolean nextEvicted() {
+        if(rereadIndex<rereading.count()) {
+            return true;
+        }
+        if(rereadEvents>0) {
+            // the events of ranges which couldn't be read
+            dropped((int)rereadEvents);
+        }
+
+        rereading.clear();
+        rereadIndex = 0;
+        synchronized(evicted) {
+            rereading.addAll(evicted);
+            evicted.clear();
+            rereadEvents = evictedEvents.getAndSet(0);
+        }
+        if(rereading.isEmpty()) {
+            return false;
+        }
+        rereadPosition = rereading.start(0);
+        return true;
+    }
+
+    private boolean hasEvicted() {
+        return rereadIndex<rereading.count() || evictedEvents.get()>0;
+    }
+
+    /** Gives up the events which didn't fit into the queue, once the journal holds more than
+     * <code>journalMaxBytes</code> from its checkpoint on, as they hold the checkpoint back.
+     *
+     * @return the number of events given up
+     */
+    private long trimJournal() {
+        if(journalMaxBytes==0 || !hasEvicted() || journal.pendingBytes()<=journalMaxBytes) {
+            return 0;
+        }
+
+        JournalRanges givenUp = new JournalRanges();
+        long events = rereadEvents;
+        if(rereadIndex<rereading.count()) {
+            givenUp.add(rereadPosition, rereading.end(rereadIndex));
+            for(int i=rereadIndex+1; i<rereading.count(); ++i) {
+                givenUp.add(rereading.start(i), rereading.end(i));
+            }
+        }
+        rereading.clear();
+        rereadIndex = 0;
+        rereadEvents = 0;
+        synchronized(evicted) {
+            givenUp.addAll(evicted);
+            evicted.clear();
+            events += evictedEvents.getAndSet(0);
+        }
+
+        logContext.addWarn("Giving up "+events+" log events which didn't fit into the queue, as the journal exceeds "
+                +journalMaxBytes+" bytes.");
+        try {
+            journal.acknowledge(givenUp);
+        }
+        catch(IOException e) {
+            logContext.addError("Exception while writing the journal checkpoint.", e);
         }
+        return events;
+    }
+
+    /** @return true if events of the spool or events which didn't fit into the queue have to be sent again */
+    private boolean hasBacklog() {
+        return hasEvicted() || (spool!=null && spool.hasPending());
+    }
+
+    /** Sends one request of the backlog, the events kept by the journal first. */
+    private void replayBacklog() {
+        if(hasEvicted()) {
+            replayEvicted();
+        }
+        else {
+            replaySpool();
+        }
+    }
 
-        return null;
+    private void ensureStream() {
+        rotate();
+        useStream(groupName, defaultStreamName);
     }
 
-    private void log(Collection<ILoggingEvent> aEvents) {
+    /** Computes the suffix of the stream names again, once the date format may yield a new one.
+     * The log streams are switched when the next batch is sent, which finishes the request
+     * in flight into the old stream.
+     */
+    private void rotate() {
 
         if (dateFormat!=null) {
 
-            dateHolder.setTime(System.currentTimeMillis()); // IF service run in UTC will work
+            final long now = System.currentTimeMillis();
+            if (now<nextRotation) {
+                // the stream name can't have changed yet
+                return;
+            }
 
-            String newStreamName;
+            nextRotation = rotation.next(now);
+            String newSuffix = suffixAt(now);
 
-            if (addMachineName) {
-                newStreamName = String.format("%s-%s-%s", streamName, getMachineName(), dateFormat.format(dateHolder));
-            } else {
-                newStreamName = String.format("%s-%s", streamName, dateFormat.format(dateHolder));
+            if (!newSuffix.equals(suffix)) {
+                String newStreamName = streamName+newSuffix;
+                logContext.addInfo("stream name changed from '"+defaultStreamName+"' to '"+newStreamName+"'");
+                awaitPrewarmed();
+                suffix = newSuffix;
+                defaultStreamName = newStreamName;
             }
+            prewarm(now, nextRotation);
+        }
+    }
 
-            if (!newStreamName.equals(currentStreamName)) {
-                logContext.addInfo("stream name changed from '"+currentStreamName+"' to '"+newStreamName+"'");
-                closeStream();
-                openStream(newStreamName);
+    private String suffixAt(long aTime) {
+        dateHolder.setTime(aTime); // IF service run in UTC will work
+        if (machineName!=null) {
+            return "-"+machineName+"-"+dateFormat.format(dateHolder);
+        } else {
+            return "-"+dateFormat.format(dateHolder);
+        }
+    }
+
+    private boolean putLogEvents(List<InputLogEvent> aEvents) {
+        if(asyncSend) {
+            putLogEventsAsync(aEvents);
+            return true;
+        }
+
+        if(!deliver(aEvents, null)) {
+            requeue(aEvents);
+            return false;
+        }
+        return true;
+    }
+
+    /** Sends the events synchronously and retries according to the {@link RetryPolicy}.
+     *
+     * @param aEvents the events to send
+     * @param aFailure the failure of a previous attempt to send the events or null
+     *
+     * @return false if the events couldn't be delivered within the retry time and should be tried again later
+     */
+    private boolean deliver(List<InputLogEvent> aEvents, Exception aFailure) {
+        final long deadline = System.nanoTime()+maxRetryNanos;
+        Exception failure = aFailure;
+        int backoffs = 0;
+        int tokenRetries = 0;
+        boolean recreated = false;
+
+        for(;;) {
+            if(failure==null) {
+                try {
+                    setLogEvents(logEventReq, aEvents);
+                    nextToken = awsLogs.putLogEvents(logEventReq
+                                    .withSequenceToken(nextToken)).getNextSequenceToken();
+                    sent(aEvents.size());
+                    return true;
+                }
+                catch(Exception e) {
+                    failure = e;
+                }
             }
 
-        } else if (awsLogs==null) {
-            closeStream();
-            openStream(streamName);
+            RetryPolicy.Decision decision = retryPolicy.classify(failure);
+            if(decision==RetryPolicy.Decision.RETRY_WITH_TOKEN && ++tokenRetries>RetryPolicy.MAX_TOKEN_RETRIES) {
+                // somebody else is writing into the same stream, give him some time
+                decision = RetryPolicy.Decision.BACKOFF;
+            }
+
+            switch(decision) {
+                case RETRY_WITH_TOKEN:
+                    nextToken = RetryPolicy.expectedToken(failure);
+                    metrics.retriesInvalidSequenceToken.incrementAndGet();
+                    break;
+
+                case ALREADY_ACCEPTED:
+                    nextToken = RetryPolicy.expectedToken(failure);
+                    metrics.dataAlreadyAccepted.incrementAndGet();
+                    return true;
+
+                case BACKOFF:
+                    long pause = retryPolicy.backoff(backoffs++);
+                    if(System.nanoTime()+pause-deadline>0) {
+                        logContext.addWarn("Couldn't send "+aEvents.size()+" log events within the retry time: "+failure.getLocalizedMessage());
+                        return false;
+                    }
+                    metrics.retriesThrottled.incrementAndGet();
+                    LockSupport.parkNanos(pause);
+                    break;
+
+                default:
+                    if(failure instanceof ResourceNotFoundException && !recreated) {
+                        // deleted behind our back, so it is created again and the events are sent once more
+                        recreated = true;
+                        if(recreateStream()) {
+                            break;
+                        }
+                    }
+                    logContext.addError("Exception while adding log events.", failure);
+                    LOG.error("currentStreamName {} ",currentStreamName,failure.getMessage(),failure);
+                    dropped(aEvents.size());
+                    return true;
+            }
+            failure = null;
         }
+    }
 
-        Collection<InputLogEvent> events =  new ArrayList<>(aEvents.size());
+    /** Creates the current log stream again, after it or its log group was deleted.
+     *
+     * @return false if it couldn't be created
+     */
+    private boolean recreateStream() {
+        streamCache.forget(currentGroupName, currentStreamName);
+        try {
+            if(createLogGroup) {
+                streamCache.ensureGroup(awsLogs, currentGroupName);
+            }
+            nextToken = streamCache.openStream(awsLogs, currentGroupName, currentStreamName);
+            return true;
+        }
+        catch(Exception e) {
+            logContext.addError("Exception while creating log stream ( "+currentGroupName+" / "+currentStreamName+" ) again.", e);
+            return false;
+        }
+    }
 
-        for (ILoggingEvent event : aEvents) {
-            if (event.getLoggerContextVO() != null) {
-                events.add(new InputLogEvent()
-                        .withTimestamp(event.getTimeStamp())
-                        .withMessage(layout.map(event)));
+    /** Keeps the events to send them again with the next batch, or later out of the spool. */
+    private void requeue(List<InputLogEvent> aEvents) {
+        if(spool!=null) {
+            int lost = 0;
+            for(InputLogEvent event : aEvents) {
+                if(!toSpool(event.getTimestamp(), event.getMessage())) {
+                    lost++;
+                }
+            }
+            if(lost>0) {
+                dropped(lost);
             }
+            metrics.requeuedBatches.incrementAndGet();
+            return;
+        }
+
+        if(requeued.size()>=MAX_REQUEUED_BATCHES) {
+            List<InputLogEvent> oldest = requeued.removeFirst().getLogEvents();
+            logContext.addError("Dropping "+oldest.size()+" log events, because AWS is not reachable for too long.");
+            dropped(oldest.size());
+        }
+        // the batches reuse their events, so they have to be copied
+        List<InputLogEvent> copy = new ArrayList<>(aEvents.size());
+        for(InputLogEvent event : aEvents) {
+            copy.add(new InputLogEvent()
+                    .withTimestamp(event.getTimestamp())
+                    .withMessage(event.getMessage()));
+        }
+        requeued.addLast(new PutLogEventsRequest(currentGroupName, currentStreamName, copy));
+        metrics.requeuedBatches.incrementAndGet();
+    }
+
+    /** Replaces the events of the request without allocating a new list for them. */
+    private static void setLogEvents(PutLogEventsRequest aRequest, List<InputLogEvent> aEvents) {
+        List<InputLogEvent> target = aRequest.getLogEvents();
+        target.clear();
+        for(int i=0, size=aEvents.size(); i<size; ++i) {
+            target.add(aEvents.get(i));
+        }
+    }
+
+    /** @return true if all requeued batches could be sent */
+    private boolean resendRequeued() {
+        if(requeued.isEmpty()) {
+            return true;
+        }
+
+        awaitInFlight();
+        while(!requeued.isEmpty()) {
+            // they might have been routed into another log stream
+            PutLogEventsRequest request = requeued.peekFirst();
+            useRoutedStream(request.getLogGroupName(), request.getLogStreamName());
+            if(!deliver(request.getLogEvents(), null)) {
+                return false;
+            }
+            requeued.removeFirst();
+        }
+        return true;
+    }
+
+    /** Sends the oldest events of the spool, which are only removed from it if AWS accepted them. */
+    private void replaySpool() {
+        replay.clear();
+        if(spool.read(replay, LogEventBatch.MAX_REQUEST_EVENTS, LogEventBatch.MAX_REQUEST_BYTES)==0) {
+            return;
+        }
+
+        ensureStream();
+        awaitInFlight();
+
+        replay.sortByTimestamp();
+        List<InputLogEvent> events = replay.events();
+        int from = 0;
+        while(from<events.size()) {
+            int to = replay.chunkEnd(from);
+            if(!deliver(events.subList(from, to), null)) {
+                return;
+            }
+            from = to;
+        }
+
+        spool.commit();
+        metrics.replayedEvents.addAndGet(events.size());
+        replay.clear();
+    }
+
+    private void sent(int aEvents) {
+        metrics.sentBatches.incrementAndGet();
+        metrics.sentEvents.addAndGet(aEvents);
+    }
+
+    private void dropped(int aEvents) {
+        metrics.droppedBatches.incrementAndGet();
+        metrics.droppedEvents.addAndGet(aEvents);
+    }
+
+    /** Sends the events without waiting for the response. The next batch is encoded meanwhile
+     * and only has to wait for the sequence token of this one.
+     */
+    private void putLogEventsAsync(List<InputLogEvent> aEvents) {
+        awaitInFlight();
+
+        // the batch is reused while the request is in flight, so the request gets its own events
+        List<InputLogEvent> events = asyncRequest.getLogEvents();
+        events.clear();
+        for(int i=0, size=aEvents.size(); i<size; ++i) {
+            if(i==asyncEvents.size()) {
+                asyncEvents.add(new InputLogEvent());
+            }
+            InputLogEvent event = asyncEvents.get(i);
+            event.setTimestamp(aEvents.get(i).getTimestamp());
+            event.setMessage(aEvents.get(i).getMessage());
+            events.add(event);
         }
 
         try {
-            nextToken = awsLogs.putLogEvents(logEventReq
-                            .withSequenceToken(nextToken)
-                            .withLogEvents(events)).getNextSequenceToken();
+            inFlightRequest = asyncRequest
+                    .withLogGroupName(currentGroupName)
+                    .withLogStreamName(currentStreamName)
+                    .withSequenceToken(nextToken);
+            inFlight = ((AWSLogsAsync)awsLogs).putLogEventsAsync(inFlightRequest);
 
         } catch (Exception e) {
-            logContext.addError("Exception while adding log events.", e);
-            LOG.error("currentStreamName {} ",currentStreamName,e.getMessage(),e);
+            inFlightRequest = null;
+            if(!deliver(aEvents, e)) {
+                requeue(aEvents);
+            }
+        }
+    }
+
+    private void awaitInFlight() {
+        if(inFlight==null) {
+            return;
+        }
+
+        List<InputLogEvent> events = inFlightRequest.getLogEvents();
+        boolean interrupted = false;
+        try {
+            for(;;) {
+                try {
+                    nextToken = inFlight.get().getNextSequenceToken();
+                    sent(events.size());
+                    break;
+                }
+                catch(InterruptedException e) {
+                    // the journal ranges and the requeue depend on the outcome, and the client times the request out anyway
+                    interrupted = true;
+                }
+            }
+        }
+        catch(ExecutionException e) {
+            Exception failure = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+            if(!deliver(events, failure)) {
+                requeue(events);
+            }
+        }
+        finally {
+            inFlight = null;
+            inFlightRequest = null;
+        }
+        acknowledge(inFlightRanges);
+        inFlightRanges.clear();
+        if(interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -227,32 +1094,276 @@ class AwsCWEventDump implements Runnable {
     }
 
     public void queue(ILoggingEvent event) {
-        queue.put(event);
+        if(!encodeOnAppend || event.getLoggerContextVO()==null) {
+            queue.put(event);
+            return;
+        }
+
+        String message = layout.map(event);
+        if(journal==null) {
+            queue.put(new EncodedLoggingEvent(event, message, router!=null ? router.route(event) : null));
+            return;
+        }
+
+        // the journal and the queue may have a different order, as the checkpoint only passes acknowledged ranges
+        long start = -1;
+        long end = -1;
+        try {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            start = journal.append(event.getTimeStamp(), bytes);
+            end = start+WriteAheadJournal.recordSize(bytes.length);
+        }
+        catch(IOException e) {
+            logContext.addError("Exception while writing into the journal.", e);
+        }
+        queue.put(new EncodedLoggingEvent(event, message, start, end));
+    }
+
+    private String encoded(ILoggingEvent aEvent) {
+        if(aEvent instanceof EncodedLoggingEvent) {
+            return ((EncodedLoggingEvent)aEvent).getEncoded();
+        }
+        return layout.map(aEvent);
+    }
+
+    private void addEncoded(EncodedLoggingEvent aEvent) {
+        batchFor(aEvent).add(aEvent.getTimeStamp(), aEvent.getEncoded(), aEvent.getEncodedBytes(),
+                aEvent.getJournalStart(), aEvent.getJournalEnd());
+    }
+
+    private void encode(Collection<ILoggingEvent> aEvents) {
+        if(encoderPool!=null && aEvents.size()>=MIN_PARALLEL_EVENTS) {
+            encodeParallel(aEvents);
+            return;
+        }
+
+        for (ILoggingEvent event : aEvents) {
+            if (event instanceof EncodedLoggingEvent) {
+                addEncoded((EncodedLoggingEvent)event);
+            }
+            else if (event.getLoggerContextVO() != null) {
+                batchFor(event).add(event.getTimeStamp(), layout.map(event));
+            }
+        }
+    }
+
+    /** Renders slices of the events with the encoder pool and the sender thread, and adds them in their original order. */
+    private void encodeParallel(Collection<ILoggingEvent> aEvents) {
+        final int size = aEvents.size();
+        if(drained.length<size) {
+            drained = new ILoggingEvent[Math.max(size, drained.length*2)];
+            rendered = new String[drained.length];
+        }
+        final ILoggingEvent[] events = aEvents.toArray(drained);
+        final String[] target = rendered;
+
+        final int slice = (size+encoderThreads)/(encoderThreads+1);
+        for(int from=slice; from<size; from+=slice) {
+            final int start = from;
+            final int end = Math.min(size, from+slice);
+            encoding.add(encoderPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    render(events, target, start, end);
+                }
+            }));
+        }
+        try {
+            render(events, target, 0, Math.min(size, slice));
+        }
+        finally {
+            // the slices must be done before the arrays are used again
+            for(Future<?> future : encoding) {
+                try {
+                    future.get();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                catch(ExecutionException e) {
+                    logContext.addError("Exception while encoding log events.", e.getCause());
+                }
+            }
+            encoding.clear();
+        }
+
+        for(int i=0; i<size; ++i) {
+            ILoggingEvent event = events[i];
+            if(event instanceof EncodedLoggingEvent) {
+                addEncoded((EncodedLoggingEvent)event);
+            }
+            else if(target[i]!=null) {
+                batchFor(event).add(event.getTimeStamp(), target[i]);
+            }
+            events[i] = null;
+            target[i] = null;
+        }
+    }
+
+    private void render(ILoggingEvent[] aEvents, String[] aTarget, int aFrom, int aTo) {
+        for(int i=aFrom; i<aTo; ++i) {
+            ILoggingEvent event = aEvents[i];
+            if(event.getLoggerContextVO()!=null && !(event instanceof EncodedLoggingEvent)) {
+                aTarget[i] = layout.map(event);
+            }
+        }
+    }
+
+    /** @return the batch of the log stream the event is routed to */
+    private LogEventBatch batchFor(ILoggingEvent aEvent) {
+        if(router==null) {
+            return batch;
+        }
+
+        Object key = aEvent instanceof EncodedLoggingEvent ? ((EncodedLoggingEvent)aEvent).getRoute() : router.route(aEvent);
+        if(key==null) {
+            return batch;
+        }
+
+        Route route = routes.get(key);
+        if(route==null) {
+            route = new Route(router.groupName(key, groupName), router.streamName(key, streamName));
+            routes.put(key, route);
+        }
+        return route.batch;
+    }
+
+    /** Sends the batches of the routed log streams which are ready, and forgets the least recently used
+     * log streams above the limit. Their sequence tokens are kept by the stream cache.
+     */
+    private void flushRoutes(boolean aAll) {
+        if(routes.isEmpty()) {
+            return;
+        }
+
+        int evict = routes.size()-maxRoutes;
+        for(Iterator<Route> it = routes.values().iterator(); it.hasNext(); ) {
+            Route route = it.next();
+            boolean evicted = evict-->0;
+            if(!route.batch.isEmpty() && (aAll || evicted || isBatchReady(route.batch))) {
+                log(route);
+                route.batch.clear();
+            }
+            if(evicted) {
+                it.remove();
+            }
+        }
+    }
+
+    /** @return how long to wait for further events before a batch has to be sent */
+    private long waitTime() {
+        boolean empty = batch.isEmpty();
+        long wait = empty ? MAX_IDLE_WAIT : Math.max(0, lingerNanos-batch.age());
+        if(!routes.isEmpty()) {
+            for(Route route : routes.values()) {
+                if(!route.batch.isEmpty()) {
+                    empty = false;
+                    wait = Math.min(wait, Math.max(0, lingerNanos-route.batch.age()));
+                }
+            }
+        }
+
+        if(empty) {
+            // replay the backlog as long as there is nothing new to send
+            return hasBacklog() ? 0 : MAX_IDLE_WAIT;
+        }
+        return wait;
+    }
+
+    private boolean isBatchReady(LogEventBatch aBatch) {
+        return !aBatch.isEmpty() && (
+                aBatch.age()>=lingerNanos ||
+                aBatch.size()>=maxBatchEvents ||
+                aBatch.byteSize()>=maxBatchBytes);
     }
 
     public void run() {
-        List<ILoggingEvent> collections = new LinkedList<ILoggingEvent>();
+        List<ILoggingEvent> collections = new ArrayList<ILoggingEvent>();
         LoggerContextVO context = null;
+        if(journal!=null) {
+            replayJournal();
+        }
         while(!done) {
 
             try {
-                int[] nbs = queue.drainTo(collections);
+                int[] nbs = queue.drainTo(collections, waitTime());
                 if(context==null && !collections.isEmpty()) {
                     context = collections.get(0).getLoggerContextVO();
                 }
 
-                int msgProcessed = nbs[0];
-                int msgSkipped = nbs[1];
+                int msgProcessed = nbs[EventQueue.COLLECTED];
+                int msgSkipped = nbs[EventQueue.SKIPPED];
+                boolean urgent = nbs[EventQueue.URGENT]>0;
+                if(spool!=null) {
+                    msgSkipped += (int)spool.takeLost();
+                }
+                if(journal!=null) {
+                    msgSkipped += (int)trimJournal();
+                }
                 if(context!=null && msgSkipped>0) {
                     collections.add(new SkippedEvent(msgSkipped, context));
                 }
-                log(collections);
+                encode(collections);
                 collections.clear();
+
+                if(isBatchReady(batch) || urgent) {
+                    // urgent log events don't wait for the linger time
+                    boolean available = log(batch);
+                    batch.clear();
+                    if(available && hasBacklog()) {
+                        // one request of the backlog per batch, so it also empties while the load continues
+                        replayBacklog();
+                    }
+                }
+                else if(msgProcessed==0 && batch.isEmpty() && hasBacklog()) {
+                    replayBacklog();
+                }
+                flushRoutes(urgent);
             }
             catch(InterruptedException e) {
                 // ignoring
             }
         }
+
+        // the log events queued while the last drain waited, the stream is opened for them if nothing was sent yet
+        int[] nbs = queue.drain(collections);
+        if(context!=null && nbs[EventQueue.SKIPPED]>0) {
+            collections.add(new SkippedEvent(nbs[EventQueue.SKIPPED], context));
+        }
+        encode(collections);
+        collections.clear();
+        if(!batch.isEmpty()) {
+            log(batch);
+            batch.clear();
+        }
+        flushRoutes(true);
+        closeStream();
+        close();
+    }
+
+    /** Releases the threads, files and the client of the dump. Called by {@link #run()} when it ends,
+     * or directly if the dump never ran.
+     */
+    void close() {
+        if(prewarmer!=null) {
+            prewarmer.shutdownNow();
+        }
+        if(sharedClient!=null) {
+            sharedClient.release();
+        }
+        if(spool!=null) {
+            spool.close();
+        }
+        if(journalSync!=null) {
+            journalSync.shutdown();
+        }
+        if(encoderPool!=null) {
+            encoderPool.shutdown();
+        }
+        if(journal!=null) {
+            journal.close();
+        }
+        metrics.queues.remove(queue);
     }
 }
 
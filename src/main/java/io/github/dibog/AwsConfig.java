@@ -19,14 +19,28 @@ package io.github.dibog;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.client.builder.ExecutorFactory;
 import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsAsync;
+import com.amazonaws.services.logs.AWSLogsAsyncClientBuilder;
 import com.amazonaws.services.logs.AWSLogsClientBuilder;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
 public class AwsConfig {
     private ClientConfiguration clientConfig;
     private AwsCredentials credentials;
     private String profileName;
     private String region;
+    private int senderThreads = 4;
+    private String clientName;
 
     public void setCredentials(AwsCredentials credentials) {
         this.credentials = credentials;
@@ -44,9 +58,76 @@ public class AwsConfig {
         this.profileName = profileName;
     }
 
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
+    }
+
+    public int getSenderThreads() {
+        return Math.max(1, senderThreads);
+    }
+
+    public void setClientName(String clientName) {
+        this.clientName = clientName;
+    }
+
+    /** @return the values which decide whether two configurations can share a client
+     *
+     * A ClientConfiguration can't be compared completely, so configurations only share a client if they are
+     * the same instance, as for the shards of an appender, if nothing is configured at all, or if they have
+     * the same client name. A named client is created from the first configuration, but it is never shared
+     * with another region or other credentials. Only a digest of the secret key is kept.
+     */
+    List<Object> key() {
+        if(clientName!=null && !clientName.trim().isEmpty()) {
+            return Arrays.<Object>asList(
+                    clientName.trim(),
+                    region,
+                    profileName,
+                    credentials==null ? null : credentials.getAWSAccessKeyId(),
+                    credentials==null ? null : digest(credentials.getAWSSecretKey()));
+        }
+        if(clientConfig==null && credentials==null && profileName==null && region==null) {
+            return Arrays.<Object>asList(AwsConfig.class, getSenderThreads());
+        }
+        return Collections.<Object>singletonList(this);
+    }
+
+    /** @return the hex encoded SHA-256 digest of the text, or null for null */
+    static String digest(String aText) {
+        if(aText==null) {
+            return null;
+        }
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(aText.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length*2);
+            for(byte b : hash) {
+                hex.append(Character.forDigit((b>>4)&0xF, 16)).append(Character.forDigit(b&0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
     public AWSLogs createAWSLogs() {
-        AWSLogsClientBuilder builder = AWSLogsClientBuilder.standard();
+        return configure(AWSLogsClientBuilder.standard()).build();
+    }
+
+    public AWSLogsAsync createAWSLogsAsync(final ExecutorService aExecutor) {
+        return configure(AWSLogsAsyncClientBuilder.standard())
+                .withExecutorFactory(new ExecutorFactory() {
+                    @Override
+                    public ExecutorService newExecutor() {
+                        return aExecutor;
+                    }
+                })
+                .build();
+    }
 
+    private <B extends AwsClientBuilder<B, ?>> B configure(B builder) {
         if(region!=null) {
             builder.withRegion(region);
         }
@@ -62,6 +143,6 @@ public class AwsConfig {
             builder.withCredentials(new AWSStaticCredentialsProvider(credentials));
         }
 
-        return builder.build();
+        return builder;
     }
 }
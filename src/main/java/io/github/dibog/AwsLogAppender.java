@@ -17,20 +17,68 @@
 package io.github.dibog;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.Layout;
 
-public class AwsLogAppender extends AppenderBase<ILoggingEvent> {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-    private AwsCWEventDump dump;
+/** Sends the log events to AWS CloudWatch Logs.
+ *
+ * The appender doesn't synchronize the logging threads, as they only hand the log
+ * events over to the queues of the background threads, which are thread-safe.
+ */
+public class AwsLogAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    static final String SHARD_BY_THREAD = "thread";
+    static final String SHARD_BY_ROUND_ROBIN = "round-robin";
+
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+    private volatile AwsCWEventDump[] dumps;
 
     AwsConfig awsConfig;
     String groupName;
     boolean createLogGroup = true;
     String streamName;
     String dateFormat;
+    long rotationPrewarmMs = 10000;
     int queueLength = 500;
+    long maxQueueBytes = 0;
+    int priorityQueueLength = 0;
+    int stripes = 1;
+    String priorityLevel = "WARN";
+    String overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    long blockTimeoutMs = 100;
+    String overflowLevel = "WARN";
     boolean addMachineName = false;
+    String waitStrategy = WaitStrategy.BLOCKING;
+    long lingerMs = 0;
+    int maxBatchEvents = 10000;
+    int maxBatchBytes = 1048576;
+    int shards = 1;
+    String shardBy = SHARD_BY_THREAD;
+    final List<String> routes = new ArrayList<>();
+    String routeMdcKey;
+    int maxRoutes = 100;
+    boolean asyncSend = false;
+    long maxRetryMs = 10000;
+    String spoolDirectory;
+    int spoolSegments = 8;
+    int spoolSegmentBytes = 8*1024*1024;
+    String journalDirectory;
+    long journalFsyncMs = 1000;
+    long journalSegmentBytes = 64*1024*1024;
+    long journalMaxBytes = 1024*1024*1024;
+    int encoderThreads = 0;
+    boolean encodeOnAppend = false;
+    boolean virtualThreads = false;
+    ThreadFactory threadFactory;
+    int threadPriority = 0;
+    SenderThreadHook threadHook;
+    final AwsLogMetrics metrics = new AwsLogMetrics();
+    final LogStreamCache streamCache = new LogStreamCache();
     Layout<ILoggingEvent> layout;
 
     public void setAwsConfig(AwsConfig config) {
@@ -56,12 +104,52 @@ public class AwsLogAppender extends AppenderBase<ILoggingEvent> {
         addInfo("dateFormat was set to "+dateFormat);
         this.dateFormat = dateFormat;
     }
+
+    public void setRotationPrewarmMs(long rotationPrewarmMs) {
+        addInfo("rotationPrewarmMs was set to "+rotationPrewarmMs);
+        this.rotationPrewarmMs = rotationPrewarmMs;
+    }
     
     public void setQueueLength(int aLength) {
         addInfo("queueLength was set to "+aLength);
         queueLength = aLength;
     }
 
+    public void setMaxQueueBytes(long aBytes) {
+        addInfo("maxQueueBytes was set to "+aBytes);
+        maxQueueBytes = aBytes;
+    }
+
+    public void setStripes(int stripes) {
+        addInfo("stripes was set to "+stripes);
+        this.stripes = stripes;
+    }
+
+    public void setPriorityQueueLength(int aLength) {
+        addInfo("priorityQueueLength was set to "+aLength);
+        priorityQueueLength = aLength;
+    }
+
+    public void setPriorityLevel(String priorityLevel) {
+        addInfo("priorityLevel was set to "+priorityLevel);
+        this.priorityLevel = priorityLevel;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        addInfo("overflowPolicy was set to "+overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setBlockTimeoutMs(long blockTimeoutMs) {
+        addInfo("blockTimeoutMs was set to "+blockTimeoutMs);
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    public void setOverflowLevel(String overflowLevel) {
+        addInfo("overflowLevel was set to "+overflowLevel);
+        this.overflowLevel = overflowLevel;
+    }
+
     public void setCreateLogGroup(boolean createLogGroup) {
         addInfo("createLogGroup was set to "+createLogGroup);
         this.createLogGroup = createLogGroup;
@@ -72,35 +160,304 @@ public class AwsLogAppender extends AppenderBase<ILoggingEvent> {
         this.addMachineName = addMachineName;
     }
 
+    public void setWaitStrategy(String waitStrategy) {
+        addInfo("waitStrategy was set to "+waitStrategy);
+        this.waitStrategy = waitStrategy;
+    }
+
+    public void setLingerMs(long lingerMs) {
+        addInfo("lingerMs was set to "+lingerMs);
+        this.lingerMs = lingerMs;
+    }
+
+    public void setMaxBatchEvents(int maxBatchEvents) {
+        addInfo("maxBatchEvents was set to "+maxBatchEvents);
+        this.maxBatchEvents = maxBatchEvents;
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        addInfo("maxBatchBytes was set to "+maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setShards(int shards) {
+        addInfo("shards was set to "+shards);
+        this.shards = shards;
+    }
+
+    public void setShardBy(String shardBy) {
+        addInfo("shardBy was set to "+shardBy);
+        this.shardBy = shardBy;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        addInfo("virtualThreads was set to "+virtualThreads);
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        addInfo("threadFactory was set to "+threadFactory);
+        this.threadFactory = threadFactory;
+    }
+
+    public void setThreadPriority(int threadPriority) {
+        addInfo("threadPriority was set to "+threadPriority);
+        this.threadPriority = threadPriority;
+    }
+
+    public void setThreadHook(SenderThreadHook threadHook) {
+        addInfo("threadHook was set to "+threadHook);
+        this.threadHook = threadHook;
+    }
+
+    public void addRoute(String route) {
+        addInfo("route was added: "+route);
+        routes.add(route);
+    }
+
+    public void setRouteMdcKey(String routeMdcKey) {
+        addInfo("routeMdcKey was set to "+routeMdcKey);
+        this.routeMdcKey = routeMdcKey;
+    }
+
+    public void setMaxRoutes(int maxRoutes) {
+        addInfo("maxRoutes was set to "+maxRoutes);
+        this.maxRoutes = maxRoutes;
+    }
+
+    public void setAsyncSend(boolean asyncSend) {
+        addInfo("asyncSend was set to "+asyncSend);
+        this.asyncSend = asyncSend;
+    }
+
+    public void setMaxRetryMs(long maxRetryMs) {
+        addInfo("maxRetryMs was set to "+maxRetryMs);
+        this.maxRetryMs = maxRetryMs;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        addInfo("spoolDirectory was set to "+spoolDirectory);
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolSegments(int spoolSegments) {
+        addInfo("spoolSegments was set to "+spoolSegments);
+        this.spoolSegments = spoolSegments;
+    }
+
+    public void setSpoolSegmentBytes(int spoolSegmentBytes) {
+        addInfo("spoolSegmentBytes was set to "+spoolSegmentBytes);
+        this.spoolSegmentBytes = spoolSegmentBytes;
+    }
+
+    public void setJournalDirectory(String journalDirectory) {
+        addInfo("journalDirectory was set to "+journalDirectory);
+        this.journalDirectory = journalDirectory;
+    }
+
+    public void setJournalFsyncMs(long journalFsyncMs) {
+        addInfo("journalFsyncMs was set to "+journalFsyncMs);
+        this.journalFsyncMs = journalFsyncMs;
+    }
+
+    public void setJournalSegmentBytes(long journalSegmentBytes) {
+        addInfo("journalSegmentBytes was set to "+journalSegmentBytes);
+        this.journalSegmentBytes = journalSegmentBytes;
+    }
+
+    public void setJournalMaxBytes(long journalMaxBytes) {
+        addInfo("journalMaxBytes was set to "+journalMaxBytes);
+        this.journalMaxBytes = journalMaxBytes;
+    }
+
+    public void setEncoderThreads(int encoderThreads) {
+        addInfo("encoderThreads was set to "+encoderThreads);
+        this.encoderThreads = encoderThreads;
+    }
+
+    public void setEncodeOnAppend(boolean encodeOnAppend) {
+        addInfo("encodeOnAppend was set to "+encodeOnAppend);
+        this.encodeOnAppend = encodeOnAppend;
+    }
+
+    /** @return the counters of this appender, e.g. to export them to a monitoring system */
+    public AwsLogMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     protected void append(ILoggingEvent event) {
 
-        AwsCWEventDump queue = dump;
-        if (dump != null) {
+        AwsCWEventDump[] queues = dumps;
+        if (queues != null) {
             event.prepareForDeferredProcessing();
-            dump.queue(event);
+            queues[selectShard(queues.length)].queue(event);
         }
 
     }
 
+    private int selectShard(int aShards) {
+        if(aShards==1) {
+            return 0;
+        }
+        else if(SHARD_BY_ROUND_ROBIN.equalsIgnoreCase(shardBy)) {
+            return (nextShard.getAndIncrement() & Integer.MAX_VALUE) % aShards;
+        }
+        else {
+            return (int)(Thread.currentThread().getId() % aShards);
+        }
+    }
+
     @Override
     public void start() {
-        dump = new AwsCWEventDump(this );
+        String error = checkSettings();
+        if(error!=null) {
+            addError(error);
+            return;
+        }
+
+        AwsCWEventDump[] queues;
+        try {
+            queues = newDumps();
+        }
+        catch(RuntimeException e) {
+            addError("Couldn't start the appender.", e);
+            return;
+        }
 
-        Thread t = new Thread(dump);
-        t.setDaemon(true);
-        t.start();
+        // no thread is started before all of them exist, so a failure can't leave one behind
+        ThreadFactory threads = senderThreads();
+        Thread[] senders = new Thread[queues.length];
+        for(int i=0; i<queues.length; ++i) {
+            senders[i] = newSenderThread(threads, queues[i]);
+        }
+        for(Thread sender : senders) {
+            sender.start();
+        }
+        dumps = queues;
 
         super.start();
     }
 
+    /** @return the description of the first invalid setting or null if all are valid */
+    private String checkSettings() {
+        if(groupName==null || groupName.trim().isEmpty()) {
+            return "No groupName was set";
+        }
+        if(streamName==null || streamName.trim().isEmpty()) {
+            return "No streamName was set";
+        }
+        if(queueLength<=0) {
+            return "Invalid queueLength "+queueLength+", it must be positive";
+        }
+        if(!SHARD_BY_THREAD.equalsIgnoreCase(shardBy) && !SHARD_BY_ROUND_ROBIN.equalsIgnoreCase(shardBy)) {
+            return "Unknown shardBy '"+shardBy+"', expected one of "+SHARD_BY_THREAD+" or "+SHARD_BY_ROUND_ROBIN;
+        }
+        if(journalDirectory!=null && (!routes.isEmpty() || routeMdcKey!=null)) {
+            // the journal neither keeps the routes nor could it acknowledge the streams independently
+            return "Routes can't be combined with a journalDirectory";
+        }
+        if(threadPriority!=0 && (threadPriority<Thread.MIN_PRIORITY || threadPriority>Thread.MAX_PRIORITY)) {
+            return "Invalid threadPriority "+threadPriority+", expected 0 or "
+                    +Thread.MIN_PRIORITY+" to "+Thread.MAX_PRIORITY;
+        }
+
+        try {
+            WaitStrategy.forName(waitStrategy);
+            OverflowPolicy.forName(overflowPolicy, blockTimeoutMs, overflowLevel);
+            OverflowPolicy.toLevel(priorityLevel, "priorityLevel");
+            StreamRouter.create(routes, routeMdcKey);
+        }
+        catch(IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    /** Creates the dumps of all shards, or closes the ones already created if one fails. */
+    private AwsCWEventDump[] newDumps() {
+        AwsCWEventDump[] queues = new AwsCWEventDump[Math.max(1, shards)];
+        try {
+            for(int i=0; i<queues.length; ++i) {
+                // every shard writes into its own log stream with its own sequence token
+                queues[i] = queues.length==1
+                        ? new AwsCWEventDump(this)
+                        : new AwsCWEventDump(this, streamName+"-"+i);
+            }
+            return queues;
+        }
+        catch(RuntimeException e) {
+            for(AwsCWEventDump dump : queues) {
+                if(dump!=null) {
+                    dump.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    private ThreadFactory senderThreads() {
+        if(threadFactory!=null) {
+            return threadFactory;
+        }
+        if(virtualThreads) {
+            ThreadFactory factory = VirtualThreads.factory("aws-log-sender-"+getName()+"-");
+            if(factory!=null) {
+                return factory;
+            }
+            addWarn("virtualThreads require Java 21 or later, using platform threads instead");
+        }
+        return new DaemonThreads("aws-log-sender-"+getName()+"-");
+    }
+
+    private Thread newSenderThread(ThreadFactory aFactory, final Runnable aDump) {
+        final SenderThreadHook hook = threadHook;
+        Runnable task = aDump;
+        if(hook!=null) {
+            task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        hook.started(Thread.currentThread());
+                    }
+                    catch(RuntimeException e) {
+                        addError("Exception in threadHook "+hook, e);
+                    }
+                    aDump.run();
+                }
+            };
+        }
+
+        Thread t = aFactory.newThread(task);
+        if(!t.isDaemon()) {
+            // a thread factory of the user mustn't keep the JVM alive, virtual threads are daemons anyway
+            t.setDaemon(true);
+        }
+        if(threadPriority!=0) {
+            t.setPriority(threadPriority);
+        }
+        if(t.getUncaughtExceptionHandler()==t.getThreadGroup()) {
+            // nobody else handles it, and without this thread no more log events would be sent
+            t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread aThread, Throwable aException) {
+                    addError("Background thread "+aThread.getName()+" died, its log events aren't sent anymore.", aException);
+                }
+            });
+        }
+        return t;
+    }
+
     @Override
     public void stop() {
         super.stop();
-        if(dump!=null) {
-            // flush it
-            dump.shutdown();
+        AwsCWEventDump[] queues = dumps;
+        if(queues!=null) {
+            for(AwsCWEventDump dump : queues) {
+                // flush it
+                dump.shutdown();
+            }
         }
-        dump = null;
+        dumps = null;
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters of an {@link AwsLogAppender}, which can be exported to a monitoring system. */
+public class AwsLogMetrics {
+
+    final AtomicLong sentBatches = new AtomicLong();
+    final AtomicLong sentEvents = new AtomicLong();
+    final AtomicLong retriesInvalidSequenceToken = new AtomicLong();
+    final AtomicLong retriesThrottled = new AtomicLong();
+    final AtomicLong dataAlreadyAccepted = new AtomicLong();
+    final AtomicLong requeuedBatches = new AtomicLong();
+    final AtomicLong droppedBatches = new AtomicLong();
+    final AtomicLong droppedEvents = new AtomicLong();
+    final AtomicLong spooledEvents = new AtomicLong();
+    final AtomicLong replayedEvents = new AtomicLong();
+    /** The queues of the running senders, which are asked for their size instead of sharing a counter with them. */
+    final List<EventQueue<?>> queues = new CopyOnWriteArrayList<>();
+
+    /** @return number of successful PutLogEvents requests */
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    /** @return number of log events sent with successful PutLogEvents requests */
+    public long getSentEvents() {
+        return sentEvents.get();
+    }
+
+    /** @return number of requests repeated with the sequence token taken from an InvalidSequenceTokenException */
+    public long getRetriesInvalidSequenceToken() {
+        return retriesInvalidSequenceToken.get();
+    }
+
+    /** @return number of requests repeated after a backoff because of throttling or a transient error */
+    public long getRetriesThrottled() {
+        return retriesThrottled.get();
+    }
+
+    /** @return number of requests AWS reported as already accepted */
+    public long getDataAlreadyAccepted() {
+        return dataAlreadyAccepted.get();
+    }
+
+    /** @return number of batches kept for a later attempt, because the retry time was exhausted */
+    public long getRequeuedBatches() {
+        return requeuedBatches.get();
+    }
+
+    /** @return number of batches given up because of a non retryable error or a full retry queue */
+    public long getDroppedBatches() {
+        return droppedBatches.get();
+    }
+
+    /** @return number of log events within the dropped batches */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /** @return number of log events written into the spool */
+    public long getSpooledEvents() {
+        return spooledEvents.get();
+    }
+
+    /** @return number of log events sent out of the spool */
+    public long getReplayedEvents() {
+        return replayedEvents.get();
+    }
+
+    /** @return the estimated size of the log events currently waiting in the queues, a gauge and not a counter */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for(EventQueue<?> queue : queues) {
+            bytes += queue.queuedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "AwsLogMetrics{" +
+                "sentBatches=" + sentBatches +
+                ", sentEvents=" + sentEvents +
+                ", retriesInvalidSequenceToken=" + retriesInvalidSequenceToken +
+                ", retriesThrottled=" + retriesThrottled +
+                ", dataAlreadyAccepted=" + dataAlreadyAccepted +
+                ", requeuedBatches=" + requeuedBatches +
+                ", droppedBatches=" + droppedBatches +
+                ", droppedEvents=" + droppedEvents +
+                ", spooledEvents=" + spooledEvents +
+                ", replayedEvents=" + replayedEvents +
+                ", queuedBytes=" + getQueuedBytes() +
+                '}';
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates daemon threads named with a prefix and a counter, so they can be told apart in thread dumps. */
+class DaemonThreads implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    DaemonThreads(String aNamePrefix) {
+        namePrefix = aNamePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable aRunnable) {
+        Thread t = new Thread(aRunnable, namePrefix+counter.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/** Stores encoded log events in a fixed number of memory mapped segment files.
+ *
+ * The segments are used as a ring: if the last one is full, the oldest one is
+ * recycled, even if it wasn't replayed yet. So the disk usage is bounded by
+ * <code>segments * segmentBytes</code>.
+ *
+ * Layout of a segment: <code>[long generation] [int read position] ([int length+1] [long timestamp] [byte[length] utf-8 message])* [int 0]</code>
+ *
+ * Records are read with {@link #read(LogEventBatch, int, long)} and only removed
+ * after {@link #commit()}, so they can be read again if sending them failed.
+ */
+class DiskSpool {
+
+    private static final int GENERATION = 0;
+    private static final int READ_POSITION = 8;
+    private static final int SEGMENT_HEADER = 12;
+    private static final int RECORD_HEADER = 12;
+    private static final int END_MARK = 4;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentBytes;
+    private final MappedByteBuffer[] segments;
+    private final long[] generations;
+
+    private long nextGeneration = 1;
+    private int writeSegment = -1;
+    private int writePos = 0;
+    private int readSegment = -1;
+    private int readPos = 0;
+    private int readEpoch = 0;
+
+    private int markSegment;
+    private int markPos;
+    private int markEpoch;
+    private int markRecords;
+    private boolean marked = false;
+
+    private long lost = 0;
+
+    /**
+     * @param aDirectory the directory of the segment files
+     * @param aPrefix the prefix of the segment file names
+     * @param aSegments the number of segment files, at least 2
+     * @param aSegmentBytes the size of every segment file
+     */
+    public DiskSpool(File aDirectory, String aPrefix, int aSegments, int aSegmentBytes) throws IOException {
+        if(aSegments<2) throw new IllegalArgumentException("At least two segments are required");
+        if(aSegmentBytes<=SEGMENT_HEADER+RECORD_HEADER+END_MARK) throw new IllegalArgumentException("Segment size too small");
+
+        directory = aDirectory;
+        prefix = aPrefix;
+        segmentBytes = aSegmentBytes;
+        segments = new MappedByteBuffer[aSegments];
+        generations = new long[aSegments];
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create spool directory "+directory);
+        }
+
+        recover();
+    }
+
+    /** Continues with the segments a previous run left behind. */
+    private void recover() throws IOException {
+        int oldest = -1;
+        int newest = -1;
+        for(int i=0; i<segments.length; ++i) {
+            if(!file(i).exists()) {
+                continue;
+            }
+
+            MappedByteBuffer segment = segment(i);
+            generations[i] = segment.getLong(GENERATION);
+            if(generations[i]<=0) {
+                continue;
+            }
+
+            if(oldest<0 || generations[i]<generations[oldest]) {
+                oldest = i;
+            }
+            if(newest<0 || generations[i]>generations[newest]) {
+                newest = i;
+            }
+            nextGeneration = Math.max(nextGeneration, generations[i]+1);
+        }
+
+        if(oldest<0) {
+            return;
+        }
+
+        readSegment = oldest;
+        readPos = Math.max(SEGMENT_HEADER, segments[oldest].getInt(READ_POSITION));
+        writeSegment = newest;
+        writePos = skipRecords(newest, SEGMENT_HEADER);
+    }
+
+    /** @return the position after the last record of the segment */
+    private int skipRecords(int aSegment, int aPos) {
+        int pos = aPos;
+        for(int length=recordLength(aSegment, pos); length>=0; length=recordLength(aSegment, pos)) {
+            pos += RECORD_HEADER+length;
+        }
+        return pos;
+    }
+
+    private int countRecords(int aSegment, int aPos) {
+        int count = 0;
+        int pos = aPos;
+        for(int length=recordLength(aSegment, pos); length>=0; length=recordLength(aSegment, pos)) {
+            pos += RECORD_HEADER+length;
+            count++;
+        }
+        return count;
+    }
+
+    private File file(int aSegment) {
+        return new File(directory, prefix+"-"+aSegment+".spool");
+    }
+
+    private MappedByteBuffer segment(int aSegment) throws IOException {
+        if(segments[aSegment]==null) {
+            try(RandomAccessFile file = new RandomAccessFile(file(aSegment), "rw")) {
+                file.setLength(segmentBytes);
+                segments[aSegment] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+        }
+        return segments[aSegment];
+    }
+
+    /** @return the length of the message at the position or -1 if there is no further record */
+    private int recordLength(int aSegment, int aPos) {
+        if(aPos+END_MARK>segmentBytes) {
+            return -1;
+        }
+        return segments[aSegment].getInt(aPos)-1;
+    }
+
+    /** Appends a log event.
+     *
+     * @return false if the message is too large for a segment
+     */
+    public synchronized boolean append(long aTimestamp, String aMessage) throws IOException {
+        byte[] bytes = aMessage.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = RECORD_HEADER+bytes.length;
+        if(SEGMENT_HEADER+recordBytes+END_MARK>segmentBytes) {
+            return false;
+        }
+
+        if(writeSegment<0 || writePos+recordBytes+END_MARK>segmentBytes) {
+            nextSegment();
+        }
+
+        MappedByteBuffer segment = segments[writeSegment];
+        segment.putLong(writePos+4, aTimestamp);
+        ByteBuffer target = segment.duplicate();
+        target.position(writePos+RECORD_HEADER);
+        target.put(bytes);
+        segment.putInt(writePos+recordBytes, 0);
+        // the length is written last, so that a reader never sees an incomplete record
+        segment.putInt(writePos, bytes.length+1);
+        writePos += recordBytes;
+
+        return true;
+    }
+
+    private void nextSegment() throws IOException {
+        int next = writeSegment<0 ? 0 : (writeSegment+1)%segments.length;
+        if(next==readSegment) {
+            // the ring is full, recycle the oldest segment
+            lost += countRecords(readSegment, readPos);
+            readSegment = (readSegment+1)%segments.length;
+            readPos = SEGMENT_HEADER;
+            readEpoch++;
+        }
+
+        MappedByteBuffer segment = segment(next);
+        segment.putInt(SEGMENT_HEADER, 0);
+        segment.putInt(READ_POSITION, SEGMENT_HEADER);
+        generations[next] = nextGeneration++;
+        segment.putLong(GENERATION, generations[next]);
+
+        writeSegment = next;
+        writePos = SEGMENT_HEADER;
+        if(readSegment<0) {
+            readSegment = next;
+            readPos = SEGMENT_HEADER;
+        }
+    }
+
+    public synchronized boolean hasPending() {
+        return readSegment>=0 && (readSegment!=writeSegment || readPos<writePos);
+    }
+
+    /** Reads the oldest records into the batch without removing them from the spool.
+     *
+     * @param aBatch the batch into which the records are added
+     * @param aMaxEvents the maximum number of records to read
+     * @param aMaxBytes the maximum size of the records as accounted by {@link LogEventBatch}
+     *
+     * @return the number of records read
+     */
+    public synchronized int read(LogEventBatch aBatch, int aMaxEvents, long aMaxBytes) {
+        markSegment = readSegment;
+        markPos = readPos;
+        markEpoch = readEpoch;
+        markRecords = 0;
+        marked = true;
+        if(readSegment<0) {
+            return 0;
+        }
+
+        int count = 0;
+        long bytes = 0;
+        while(count<aMaxEvents) {
+            int length = markSegment==writeSegment && markPos>=writePos ? -1 : recordLength(markSegment, markPos);
+            if(length<0) {
+                if(markSegment==writeSegment) {
+                    break;
+                }
+                markSegment = (markSegment+1)%segments.length;
+                markPos = SEGMENT_HEADER;
+                continue;
+            }
+
+            if(count>0 && bytes+length+LogEventBatch.EVENT_OVERHEAD>aMaxBytes) {
+                break;
+            }
+
+            MappedByteBuffer segment = segments[markSegment];
+            long timestamp = segment.getLong(markPos+4);
+            byte[] message = new byte[length];
+            ByteBuffer source = segment.duplicate();
+            source.position(markPos+RECORD_HEADER);
+            source.get(message);
+            aBatch.add(timestamp, new String(message, StandardCharsets.UTF_8));
+
+            markPos += RECORD_HEADER+length;
+            bytes += length+LogEventBatch.EVENT_OVERHEAD;
+            count++;
+        }
+        markRecords = count;
+
+        return count;
+    }
+
+    /** Removes the records returned by the last call of {@link #read(LogEventBatch, int, long)}. */
+    public synchronized void commit() {
+        if(!marked || markEpoch!=readEpoch || markRecords==0) {
+            // the segments were recycled meanwhile, the records are already gone
+            marked = false;
+            return;
+        }
+
+        while(readSegment!=markSegment) {
+            // a replayed segment must not be replayed again after a restart
+            segments[readSegment].putLong(GENERATION, 0);
+            readSegment = (readSegment+1)%segments.length;
+        }
+        readPos = markPos;
+        segments[readSegment].putInt(READ_POSITION, readPos);
+        marked = false;
+    }
+
+    /** @return the number of records lost since the last call, because their segment was recycled */
+    public synchronized long takeLost() {
+        long result = lost;
+        lost = 0;
+        return result;
+    }
+
+    public synchronized void close() {
+        for(MappedByteBuffer segment : segments) {
+            if(segment!=null) {
+                segment.force();
+            }
+        }
+    }
+}
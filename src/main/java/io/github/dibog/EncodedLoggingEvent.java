@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+import java.util.Collections;
+import java.util.Map;
+
+/** A logging event which was already rendered by the logging thread.
+ *
+ * Only the data the sender still needs is kept, the arguments, the MDC, the throwable
+ * proxy and the caller data of the original event can be garbage collected. That's why
+ * the route of the event has to be decided before. The UTF-8 size of the rendered event is measured once by the logging thread.
+ */
+class EncodedLoggingEvent implements ILoggingEvent {
+    private final long timeStamp;
+    private final Level level;
+    private final String loggerName;
+    private final String threadName;
+    private final LoggerContextVO loggerContextVO;
+    private final String encoded;
+    private final int encodedBytes;
+    private final long journalStart;
+    private final long journalEnd;
+    private final Object route;
+
+    /**
+     * @param aEvent the original event
+     * @param aEncoded the rendered event
+     * @param aRoute the route decided by the {@link StreamRouter} or null for the default log stream
+     */
+    public EncodedLoggingEvent(ILoggingEvent aEvent, String aEncoded, Object aRoute) {
+        this(aEvent, aEncoded, -1, -1, aRoute);
+    }
+
+    /**
+     * @param aEvent the original event
+     * @param aEncoded the rendered event
+     * @param aJournalStart the journal offset of this event or -1 if it wasn't journaled
+     * @param aJournalEnd the journal offset after this event
+     */
+    public EncodedLoggingEvent(ILoggingEvent aEvent, String aEncoded, long aJournalStart, long aJournalEnd) {
+        this(aEvent, aEncoded, aJournalStart, aJournalEnd, null);
+    }
+
+    private EncodedLoggingEvent(ILoggingEvent aEvent, String aEncoded, long aJournalStart, long aJournalEnd, Object aRoute) {
+        timeStamp = aEvent.getTimeStamp();
+        level = aEvent.getLevel();
+        loggerName = aEvent.getLoggerName();
+        threadName = aEvent.getThreadName();
+        loggerContextVO = aEvent.getLoggerContextVO();
+        encoded = aEncoded;
+        encodedBytes = LogEventBatch.utf8Length(aEncoded);
+        journalStart = aJournalStart;
+        journalEnd = aJournalEnd;
+        route = aRoute;
+    }
+
+    /** @return the rendered event as it is sent to AWS */
+    public String getEncoded() {
+        return encoded;
+    }
+
+    /** @return the UTF-8 size of the rendered event */
+    public int getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public long getJournalStart() {
+        return journalStart;
+    }
+
+    public long getJournalEnd() {
+        return journalEnd;
+    }
+
+    public Object getRoute() {
+        return route;
+    }
+
+    @Override
+    public String getThreadName() {
+        return threadName;
+    }
+
+    @Override
+    public Level getLevel() {
+        return level;
+    }
+
+    @Override
+    public String getMessage() {
+        return encoded;
+    }
+
+    @Override
+    public Object[] getArgumentArray() {
+        return null;
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        return encoded;
+    }
+
+    @Override
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    @Override
+    public LoggerContextVO getLoggerContextVO() {
+        return loggerContextVO;
+    }
+
+    @Override
+    public IThrowableProxy getThrowableProxy() {
+        return null;
+    }
+
+    @Override
+    public StackTraceElement[] getCallerData() {
+        return null;
+    }
+
+    @Override
+    public boolean hasCallerData() {
+        return false;
+    }
+
+    @Override
+    public Marker getMarker() {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMDCPropertyMap() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, String> getMdc() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    @Override
+    public void prepareForDeferredProcessing() { }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.Collection;
+
+/** Hands the log events from the logging threads over to the single sender thread. */
+interface EventQueue<E> {
+
+    /** Index of the number of collected elements within the result of {@link #drainTo(Collection, long)}. */
+    int COLLECTED = 0;
+    /** Index of the number of elements lost since the last drain. */
+    int SKIPPED = 1;
+    /** Index of the number of collected elements which should be sent without delay. */
+    int URGENT = 2;
+
+    /** Adds an element, called by the logging threads.
+     *
+     * @return true if an element had to be removed or dropped to make room
+     */
+    boolean put(E aElement);
+
+    /** Moves all elements of the queue into the collection (FIFO), but waits at most the given time for them.
+     * Must only be called from a single consumer thread.
+     *
+     * @param aCollection the collection into which the elements are moved
+     * @param aTimeoutNanos the maximum time to wait for the first element
+     *
+     * @return (collected, skipped, urgent) as indexed by {@link #COLLECTED}, {@link #SKIPPED} and {@link #URGENT}
+     */
+    int[] drainTo(Collection<E> aCollection, long aTimeoutNanos) throws InterruptedException;
+
+    /** Moves the elements which are available right now into the collection (FIFO), without waiting.
+     * Must only be called from a single consumer thread.
+     *
+     * @return (collected, skipped, urgent) as for {@link #drainTo(Collection, long)}
+     */
+    int[] drain(Collection<E> aCollection);
+
+    /** @return true if elements can be drained */
+    boolean hasPending();
+
+    /** @return the total weight of the queued elements */
+    long queuedBytes();
+}
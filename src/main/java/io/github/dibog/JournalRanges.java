@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.Arrays;
+
+/** Ranges <code>[start, end)</code> of journal offsets, e.g. of the events of a batch.
+ *
+ * A range which starts where the previous one ends is merged with it, so events which were
+ * journaled one after another need a single range. The array is reused after {@link #clear()}.
+ */
+class JournalRanges {
+
+    private long[] ranges = new long[16];
+    private int size = 0;
+
+    /** Adds the range, unless the start is negative because the event wasn't journaled. */
+    public void add(long aStart, long aEnd) {
+        if(aStart<0) {
+            return;
+        }
+        if(size>0 && ranges[size-1]==aStart) {
+            ranges[size-1] = aEnd;
+            return;
+        }
+        if(size==ranges.length) {
+            ranges = Arrays.copyOf(ranges, size*2);
+        }
+        ranges[size++] = aStart;
+        ranges[size++] = aEnd;
+    }
+
+    public void addAll(JournalRanges aRanges) {
+        for(int i=0; i<aRanges.size; i+=2) {
+            add(aRanges.ranges[i], aRanges.ranges[i+1]);
+        }
+    }
+
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    public int count() {
+        return size/2;
+    }
+
+    public long start(int aIndex) {
+        return ranges[2*aIndex];
+    }
+
+    public long end(int aIndex) {
+        return ranges[2*aIndex+1];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** One ring buffer per level, TRACE, DEBUG, INFO, WARN and ERROR, which share the capacity.
+ *
+ * If the queue is full, a new log event evicts the oldest log event of the lowest level which has
+ * log events queued, but never one of a higher level than its own. If there is none, or if the
+ * {@link OverflowPolicy.LevelAware} policy drops log events of its level, the new log event is dropped.
+ * So a burst of low level log events never pushes more important ones out of the queue, and that
+ * costs a look at each level per put at most. The consumer merges the lanes by the order.
+ */
+class LevelLanes implements EventQueue<ILoggingEvent> {
+
+    private static final int LEVELS = 5;
+
+    private final RingBuffer<ILoggingEvent>[] lanes;
+    private final StripedQueue<ILoggingEvent> merged;
+    private final OverflowPolicy.LevelAware policy;
+    private final RingBuffer.Overflow<ILoggingEvent> overflow;
+    private final int capacity;
+    /** The number of queued log events, the tombstones of evicted ones not counted. */
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicInteger skipped = new AtomicInteger(0);
+    private final RingBuffer.Overflow<ILoggingEvent> removed = new RingBuffer.Overflow<ILoggingEvent>() {
+        @Override
+        public boolean overflow(ILoggingEvent aEvent) {
+            size.decrementAndGet();
+            return overflow!=null && overflow.overflow(aEvent);
+        }
+    };
+
+    /**
+     * @param aCapacity the maximum number of log events of all levels together
+     * @param aWaitStrategy how the consumer waits for log events
+     * @param aOverflow receives the log events which are evicted or dropped, or null
+     * @param aWeigher weighs the log events, or null if they shouldn't be weighed
+     * @param aMaxBytes the maximum total weight of the log events of each level, or 0 for no limit
+     * @param aOrder the order in which the log events of the levels are merged
+     * @param aPolicy decides which new log events are dropped instead of evicting older ones
+     */
+    @SuppressWarnings("unchecked")
+    public LevelLanes(int aCapacity, WaitStrategy aWaitStrategy, RingBuffer.Overflow<ILoggingEvent> aOverflow,
+                      RingBuffer.Weigher<ILoggingEvent> aWeigher, long aMaxBytes,
+                      Comparator<? super ILoggingEvent> aOrder, OverflowPolicy.LevelAware aPolicy) {
+        capacity = aCapacity;
+        overflow = aOverflow;
+        policy = aPolicy;
+        lanes = new RingBuffer[LEVELS];
+        for(int i=0; i<LEVELS; ++i) {
+            // every level may use the whole capacity, the evicted log events leave tombstones until they are drained
+            lanes[i] = new RingBuffer<>(aCapacity, aWaitStrategy, removed, aWeigher, aMaxBytes, null);
+        }
+        merged = new StripedQueue<>(lanes, aOrder, aWaitStrategy);
+    }
+
+    private static int lane(ILoggingEvent aEvent) {
+        if(aEvent.getLevel()==null) {
+            return 0;
+        }
+        // TRACE is 5000, DEBUG 10000 up to ERROR 40000
+        return Math.min(LEVELS-1, aEvent.getLevel().toInt()/10000);
+    }
+
+    @Override
+    public boolean put(ILoggingEvent aEvent) {
+        int lane = lane(aEvent);
+        boolean evicted = false;
+        if(size.incrementAndGet()>capacity) {
+            evicted = !policy.dropNewest(aEvent) && evictUpTo(lane);
+            if(!evicted) {
+                if(!removed.overflow(aEvent)) {
+                    skipped.incrementAndGet();
+                }
+                return true;
+            }
+        }
+        return lanes[lane].put(aEvent) || evicted;
+    }
+
+    /** Evicts the oldest log event of the lowest level which has one, up to the given one. */
+    private boolean evictUpTo(int aLane) {
+        for(int i=0; i<=aLane; ++i) {
+            if(lanes[i].evictOldest()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int[] drainTo(Collection<ILoggingEvent> aCollection, long aTimeoutNanos) throws InterruptedException {
+        return counted(merged.drainTo(aCollection, aTimeoutNanos));
+    }
+
+    @Override
+    public int[] drain(Collection<ILoggingEvent> aCollection) {
+        return counted(merged.drain(aCollection));
+    }
+
+    private int[] counted(int[] aResult) {
+        size.addAndGet(-aResult[COLLECTED]);
+        aResult[SKIPPED] += skipped.getAndSet(0);
+        return aResult;
+    }
+
+    @Override
+    public boolean hasPending() {
+        return merged.hasPending();
+    }
+
+    @Override
+    public long queuedBytes() {
+        return merged.queuedBytes();
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import com.amazonaws.services.logs.model.InputLogEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Encoded log events which are collected until they are sent to AWS.
+ *
+ * The UTF-8 size of every message is measured once when it is added, so that
+ * the batch can later be cut into chunks which respect the limits of PutLogEvents.
+ * It also remembers whether the events were added in chronological order, so
+ * that they only have to be sorted if this was not the case.
+ *
+ * The InputLogEvents are reused after {@link #clear()}, so they must not be kept
+ * by anybody else after that.
+ */
+class LogEventBatch {
+
+    /** Number of bytes AWS adds to the size of every log event. */
+    static final int EVENT_OVERHEAD = 26;
+
+    /** Maximum size of a single PutLogEvents request, including the overhead of every event. */
+    static final int MAX_REQUEST_BYTES = 1048576;
+
+    /** Maximum number of events within a single PutLogEvents request. */
+    static final int MAX_REQUEST_EVENTS = 10000;
+
+    /** Maximum time span between the first and the last event of a single PutLogEvents request. */
+    static final long MAX_REQUEST_SPAN = TimeUnit.HOURS.toMillis(24);
+
+    /** Maximum size of a single event, including its overhead. */
+    static final int MAX_EVENT_BYTES = 262144;
+
+    /** Moves per event the insertion sort may do, before the whole batch is sorted instead. */
+    private static final int MAX_SORT_MOVES = 16;
+
+    private static final String TRUNCATED = "...";
+
+    private final List<InputLogEvent> events = new ArrayList<>();
+    private final List<InputLogEvent> spare = new ArrayList<>();
+    private int[] sizes = new int[64];
+    private long[] timestamps = new long[64];
+    private long bytes = 0;
+    private long firstAdded = 0;
+    private int unsortedFrom = -1;
+    private final JournalRanges journalRanges = new JournalRanges();
+
+    public void add(long aTimestamp, String aMessage) {
+        add(aTimestamp, aMessage, utf8Length(aMessage), -1, -1);
+    }
+
+    /** Adds an event whose UTF-8 size is already known. The batch remembers the journal ranges of its events.
+     *
+     * @param aMessageBytes the UTF-8 size of the message
+     * @param aJournalStart the journal offset of the event or -1 if it wasn't journaled
+     * @param aJournalEnd the journal offset after the event
+     */
+    public void add(long aTimestamp, String aMessage, int aMessageBytes, long aJournalStart, long aJournalEnd) {
+        if(events.isEmpty()) {
+            firstAdded = System.nanoTime();
+        }
+        journalRanges.add(aJournalStart, aJournalEnd);
+
+        int size = aMessageBytes+EVENT_OVERHEAD;
+        if(size>MAX_EVENT_BYTES) {
+            aMessage = truncate(aMessage, MAX_EVENT_BYTES-EVENT_OVERHEAD-TRUNCATED.length())+TRUNCATED;
+            size = utf8Length(aMessage)+EVENT_OVERHEAD;
+        }
+
+        final int index = events.size();
+        if(index==sizes.length) {
+            sizes = Arrays.copyOf(sizes, index*2);
+            timestamps = Arrays.copyOf(timestamps, index*2);
+        }
+        sizes[index] = size;
+        timestamps[index] = aTimestamp;
+
+        if(unsortedFrom<0 && index>0 && aTimestamp<timestamps[index-1]) {
+            unsortedFrom = index;
+        }
+
+        InputLogEvent event = spare.isEmpty() ? new InputLogEvent() : spare.remove(spare.size()-1);
+        event.setTimestamp(aTimestamp);
+        event.setMessage(aMessage);
+        events.add(event);
+        bytes += size;
+    }
+
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /** @return the payload size of the batch as AWS accounts it */
+    public long byteSize() {
+        return bytes;
+    }
+
+    /** @return the nanos passed since the first event was added */
+    public long age() {
+        return events.isEmpty() ? 0 : System.nanoTime()-firstAdded;
+    }
+
+    /** @return the journal ranges of the events of the batch */
+    public JournalRanges journalRanges() {
+        return journalRanges;
+    }
+
+    public List<InputLogEvent> events() {
+        return events;
+    }
+
+    /** Determines the largest chunk starting at the given index which can be sent with a single PutLogEvents request.
+     *
+     * @param aFrom index of the first event of the chunk
+     *
+     * @return the index after the last event of the chunk
+     */
+    public int chunkEnd(int aFrom) {
+        final int size = events.size();
+        final long first = timestamps[aFrom];
+
+        long chunkBytes = 0;
+        long min = first;
+        long max = first;
+        int to = aFrom;
+        while(to<size && to-aFrom<MAX_REQUEST_EVENTS) {
+            long timestamp = timestamps[to];
+            long newMin = Math.min(min, timestamp);
+            long newMax = Math.max(max, timestamp);
+            if(newMax-newMin>MAX_REQUEST_SPAN || chunkBytes+sizes[to]>MAX_REQUEST_BYTES) {
+                break;
+            }
+
+            chunkBytes += sizes[to];
+            min = newMin;
+            max = newMax;
+            to++;
+        }
+
+        return to;
+    }
+
+    /** Brings the events into chronological order, as required by PutLogEvents.
+     *
+     * Events from different threads arrive almost sorted, so an insertion sort starting at the
+     * first out-of-order event is used. Only if that turns out to be too expensive the whole
+     * batch is sorted.
+     */
+    public void sortByTimestamp() {
+        if(unsortedFrom<0) {
+            return;
+        }
+
+        final int size = events.size();
+        final long maxMoves = (long)size*MAX_SORT_MOVES;
+        long moves = 0;
+        for(int i=unsortedFrom; i<size; ++i) {
+            final long timestamp = timestamps[i];
+            if(timestamp>=timestamps[i-1]) {
+                continue;
+            }
+
+            final InputLogEvent event = events.get(i);
+            final int eventSize = sizes[i];
+            int j = i-1;
+            while(j>=0 && timestamps[j]>timestamp) {
+                events.set(j+1, events.get(j));
+                sizes[j+1] = sizes[j];
+                timestamps[j+1] = timestamps[j];
+                j--;
+            }
+            events.set(j+1, event);
+            sizes[j+1] = eventSize;
+            timestamps[j+1] = timestamp;
+
+            moves += i-1-j;
+            if(moves>maxMoves) {
+                sortAll();
+                break;
+            }
+        }
+
+        unsortedFrom = -1;
+    }
+
+    private void sortAll() {
+        final int size = events.size();
+        Integer[] order = new Integer[size];
+        for(int i=0; i<size; ++i) {
+            order[i] = i;
+        }
+
+        final long[] keys = timestamps;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(keys[a], keys[b]);
+            }
+        });
+
+        InputLogEvent[] oldEvents = events.toArray(new InputLogEvent[size]);
+        int[] oldSizes = Arrays.copyOf(sizes, size);
+        long[] oldTimestamps = Arrays.copyOf(timestamps, size);
+        for(int i=0; i<size; ++i) {
+            int from = order[i];
+            events.set(i, oldEvents[from]);
+            sizes[i] = oldSizes[from];
+            timestamps[i] = oldTimestamps[from];
+        }
+    }
+
+    public void clear() {
+        for(int i=0, size=events.size(); i<size; ++i) {
+            InputLogEvent event = events.get(i);
+            event.setMessage(null);
+            spare.add(event);
+        }
+        events.clear();
+        bytes = 0;
+        unsortedFrom = -1;
+        journalRanges.clear();
+    }
+
+    /** Shortens the text so that its UTF-8 representation fits into the given number of bytes. */
+    static String truncate(String aText, int aMaxBytes) {
+        int length = 0;
+        for(int i=0, size=aText.length(); i<size; ++i) {
+            char c = aText.charAt(i);
+            int charBytes;
+            int charLength = 1;
+            if(c<0x80) {
+                charBytes = 1;
+            }
+            else if(c<0x800) {
+                charBytes = 2;
+            }
+            else if(Character.isHighSurrogate(c) && i+1<size && Character.isLowSurrogate(aText.charAt(i+1))) {
+                charBytes = 4;
+                charLength = 2;
+            }
+            else {
+                charBytes = 3;
+            }
+
+            if(length+charBytes>aMaxBytes) {
+                return aText.substring(0, i);
+            }
+            length += charBytes;
+            i += charLength-1;
+        }
+        return aText;
+    }
+
+    static int utf8Length(CharSequence aText) {
+        int length = 0;
+        for(int i=0, size=aText.length(); i<size; ++i) {
+            char c = aText.charAt(i);
+            if(c<0x80) {
+                length += 1;
+            }
+            else if(c<0x800) {
+                length += 2;
+            }
+            else if(Character.isHighSurrogate(c) && i+1<size && Character.isLowSurrogate(aText.charAt(i+1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.CreateLogGroupRequest;
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.DescribeLogStreamsRequest;
+import com.amazonaws.services.logs.model.DescribeLogStreamsResult;
+import com.amazonaws.services.logs.model.LogStream;
+import com.amazonaws.services.logs.model.ResourceAlreadyExistsException;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Remembers which log groups and log streams exist, together with the last upload sequence token of the streams.
+ *
+ * Opening a known log stream doesn't need any request. Unknown ones are created, and only if they
+ * already exist their sequence token is looked up, so the describe calls which are throttled per
+ * account are hardly ever needed. Thread-safe, as the streams are also opened ahead of a rotation.
+ *
+ * IAM policies which only allow to describe and to put log events deny the creation, so a denied
+ * creation is taken as a hint that the log group or log stream may already exist.
+ */
+class LogStreamCache {
+
+    private static final String ACCESS_DENIED = "AccessDeniedException";
+
+    /** Rotating streams leave one entry per period behind, so only the recently used ones are kept. */
+    private static final int MAX_STREAMS = 1024;
+
+    private final Set<String> groups = new HashSet<>();
+    private final Map<String, String> streams = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> aEldest) {
+            return size()>MAX_STREAMS;
+        }
+    };
+
+    /** Creates the log group, unless it is known to exist. */
+    public void ensureGroup(AWSLogs aLogs, String aGroupName) {
+        synchronized(this) {
+            if(groups.contains(aGroupName)) {
+                return;
+            }
+        }
+
+        try {
+            aLogs.createLogGroup(new CreateLogGroupRequest(aGroupName));
+        }
+        catch(ResourceAlreadyExistsException e) {
+            // that's what we wanted
+        }
+        catch(AmazonServiceException e) {
+            if(!isAccessDenied(e)) {
+                throw e;
+            }
+            // if it doesn't exist, creating or finding the log stream fails
+        }
+
+        synchronized(this) {
+            groups.add(aGroupName);
+        }
+    }
+
+    /** Creates the log stream, unless it is known to exist.
+     *
+     * @return the upload sequence token to use for the next request, null for a new log stream
+     */
+    public String openStream(AWSLogs aLogs, String aGroupName, String aStreamName) {
+        String key = key(aGroupName, aStreamName);
+        synchronized(this) {
+            if(streams.containsKey(key)) {
+                return streams.get(key);
+            }
+        }
+
+        String token = null;
+        try {
+            aLogs.createLogStream(new CreateLogStreamRequest(aGroupName, aStreamName));
+        }
+        catch(ResourceAlreadyExistsException e) {
+            LogStream stream = findLogStream(aLogs, aGroupName, aStreamName);
+            token = stream!=null ? stream.getUploadSequenceToken() : null;
+        }
+        catch(AmazonServiceException e) {
+            if(!isAccessDenied(e)) {
+                throw e;
+            }
+            LogStream stream = findLogStream(aLogs, aGroupName, aStreamName);
+            if(stream==null) {
+                // it really has to be created
+                throw e;
+            }
+            token = stream.getUploadSequenceToken();
+        }
+
+        synchronized(this) {
+            streams.put(key, token);
+        }
+        return token;
+    }
+
+    /** Stores the sequence token the log stream expects next, so it can be opened again without a request. */
+    public synchronized void update(String aGroupName, String aStreamName, String aToken) {
+        streams.put(key(aGroupName, aStreamName), aToken);
+    }
+
+    /** Forgets the log stream and its log group, e.g. because one of them was deleted. */
+    public synchronized void forget(String aGroupName, String aStreamName) {
+        streams.remove(key(aGroupName, aStreamName));
+        groups.remove(aGroupName);
+    }
+
+    private static boolean isAccessDenied(AmazonServiceException aException) {
+        return ACCESS_DENIED.equals(aException.getErrorCode()) || aException.getStatusCode()==403;
+    }
+
+    private static String key(String aGroupName, String aStreamName) {
+        // ':' isn't allowed in names of log streams
+        return aGroupName+":"+aStreamName;
+    }
+
+    /** Looks through all pages, as a prefix may match more log streams than fit on a single one. */
+    static LogStream findLogStream(AWSLogs aLogs, String aGroupName, String aStreamName) {
+        DescribeLogStreamsRequest request = new DescribeLogStreamsRequest(aGroupName)
+                .withLogStreamNamePrefix(aStreamName);
+        do {
+            DescribeLogStreamsResult result = aLogs.describeLogStreams(request);
+            for (LogStream stream : result.getLogStreams()) {
+                if (stream.getLogStreamName().equals(aStreamName)) {
+                    return stream;
+                }
+            }
+            request.setNextToken(result.getNextToken());
+        }
+        while(request.getNextToken()!=null);
+
+        return null;
+    }
+}
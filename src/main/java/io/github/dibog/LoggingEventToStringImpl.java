@@ -21,41 +21,117 @@ import ch.qos.logback.classic.spi.IThrowableProxy;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Marker;
 
-import java.util.HashMap;
 import java.util.Map;
 
+/** Renders a logging event as JSON object.
+ *
+ * The JSON is written directly into a builder which is reused by every thread,
+ * so apart from the resulting string nothing is allocated per event. The fields
+ * are written in the order in which a HashMap serialized by an ObjectMapper used to
+ * return them, and strings are escaped the same way, so the output didn't change.
+ */
 class LoggingEventToStringImpl implements LoggingEventToString {
+
+    /** Builders which grew larger than this, e.g. because of a huge stack trace, aren't kept. */
+    private static final int MAX_RETAINED_CAPACITY = 64*1024;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     private final ObjectMapper m = new ObjectMapper();
 
+    private final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
     @Override
     public String map(ILoggingEvent event) {
+        StringBuilder json = builders.get();
+        json.setLength(0);
 
-        Map<String,Object> values = new HashMap<>();
+        try {
+            json.append('{');
 
-        values.put("message", event.getFormattedMessage());
-        values.put("level", event.getLevel().levelStr);
-        values.put("logger-name", event.getLoggerName());
-        values.put("thread-name", event.getThreadName());
+            IThrowableProxy exceptionProxy = event.getThrowableProxy();
+            if(exceptionProxy!=null) {
+                appendString(json.append("\"exception\":"), ExceptionUtil.toString(exceptionProxy));
+                json.append(',');
+            }
 
-        Marker marker = event.getMarker();
-        if(marker!=null)
-            values.put("marker", marker);
+            appendString(json.append("\"level\":"), event.getLevel().levelStr);
 
-        IThrowableProxy exceptionProxy = event.getThrowableProxy();
-        if(exceptionProxy!=null) {
-            values.put("exception", ExceptionUtil.toString(exceptionProxy));
-        }
+            Marker marker = event.getMarker();
+            if(marker!=null) {
+                // markers are rare and their structure is up to the implementation
+                json.append(",\"marker\":").append(m.writeValueAsString(marker));
+            }
 
-        // In theory, event.getMDCPropertyMap() should not be null, in practice it can
-        if (event.getMDCPropertyMap() != null && !event.getMDCPropertyMap().isEmpty()) {
-            values.put("context", event.getMDCPropertyMap());
-        }
+            appendString(json.append(",\"logger-name\":"), event.getLoggerName());
 
-        try {
-            return m.writeValueAsString(values);
+            // In theory, event.getMDCPropertyMap() should not be null, in practice it can
+            Map<String, String> mdc = event.getMDCPropertyMap();
+            if (mdc != null && !mdc.isEmpty()) {
+                json.append(",\"context\":{");
+                boolean first = true;
+                for(Map.Entry<String, String> entry : mdc.entrySet()) {
+                    if(!first) {
+                        json.append(',');
+                    }
+                    appendString(json, entry.getKey());
+                    appendString(json.append(':'), entry.getValue());
+                    first = false;
+                }
+                json.append('}');
+            }
+
+            appendString(json.append(",\"thread-name\":"), event.getThreadName());
+            appendString(json.append(",\"message\":"), event.getFormattedMessage());
+            json.append('}');
+
+            return json.toString();
         }
         catch(Exception e) {
             return e.getLocalizedMessage();
         }
+        finally {
+            if(json.capacity()>MAX_RETAINED_CAPACITY) {
+                builders.remove();
+            }
+        }
+    }
+
+    /** Appends the text as JSON string, escaped like Jackson does by default. */
+    private static void appendString(StringBuilder aJson, String aText) {
+        if(aText==null) {
+            aJson.append("null");
+            return;
+        }
+
+        aJson.append('"');
+        int start = 0;
+        for(int i=0, size=aText.length(); i<size; ++i) {
+            char c = aText.charAt(i);
+            if(c>=0x20 && c!='"' && c!='\\') {
+                continue;
+            }
+
+            aJson.append(aText, start, i);
+            start = i+1;
+            switch(c) {
+                case '"':  aJson.append("\\\""); break;
+                case '\\': aJson.append("\\\\"); break;
+                case '\b': aJson.append("\\b"); break;
+                case '\t': aJson.append("\\t"); break;
+                case '\n': aJson.append("\\n"); break;
+                case '\f': aJson.append("\\f"); break;
+                case '\r': aJson.append("\\r"); break;
+                default:
+                    aJson.append("\\u00").append(HEX[c>>4]).append(HEX[c&0xF]);
+            }
+        }
+        aJson.append(aText, start, aText.length());
+        aJson.append('"');
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/** Decides what happens to a new log event if the queue is full.
+ *
+ * Evicting the oldest log event is what the {@link RingBuffer} does without an admission,
+ * so {@link #forName(String, long, String)} returns null for it. The {@link LevelAware} policy
+ * needs a queue of {@link LevelLanes} instead.
+ */
+abstract class OverflowPolicy implements RingBuffer.Admission<ILoggingEvent> {
+
+    static final String DROP_OLDEST = "drop-oldest";
+    static final String DROP_NEWEST = "drop-newest";
+    static final String BLOCK = "block";
+    static final String LEVEL_AWARE = "level-aware";
+
+    @Override
+    public long blockNanos(ILoggingEvent aEvent) {
+        return 0;
+    }
+
+    /**
+     * @param aName the name of the policy
+     * @param aBlockMs how long {@link #BLOCK} waits for free space
+     * @param aLevel the level from which on {@link #LEVEL_AWARE} evicts older log events of at most the same level instead of dropping the new one
+     *
+     * @return the policy or null for {@link #DROP_OLDEST}
+     */
+    static OverflowPolicy forName(String aName, long aBlockMs, String aLevel) {
+        if(aName==null || aName.trim().isEmpty() || DROP_OLDEST.equalsIgnoreCase(aName.trim())) {
+            return null;
+        }
+
+        String name = aName.trim();
+        if(DROP_NEWEST.equalsIgnoreCase(name)) {
+            return new DropNewest();
+        }
+        else if(BLOCK.equalsIgnoreCase(name)) {
+            return new Block(TimeUnit.MILLISECONDS.toNanos(Math.max(0, aBlockMs)));
+        }
+        else if(LEVEL_AWARE.equalsIgnoreCase(name)) {
+            return new LevelAware(toLevel(aLevel, "overflowLevel"));
+        }
+
+        throw new IllegalArgumentException("Unknown overflow policy '"+aName+"', expected one of "
+                +DROP_OLDEST+", "+DROP_NEWEST+", "+BLOCK+" or "+LEVEL_AWARE);
+    }
+
+    /** Parses a level setting, as {@link Level#toLevel(String, Level)} would silently use the default for a typo.
+     *
+     * @param aLevel the name of the level or null for WARN
+     * @param aSetting the name of the setting for the error message
+     */
+    static Level toLevel(String aLevel, String aSetting) {
+        if(aLevel==null || aLevel.trim().isEmpty()) {
+            return Level.WARN;
+        }
+
+        Level level = Level.toLevel(aLevel.trim(), null);
+        if(level==null) {
+            throw new IllegalArgumentException("Unknown "+aSetting+" '"+aLevel+"', expected one of "
+                    +"TRACE, DEBUG, INFO, WARN, ERROR, ALL or OFF");
+        }
+        return level;
+    }
+
+    /** Keeps the queued log events and drops the new one. */
+    static class DropNewest extends OverflowPolicy {
+        @Override
+        public boolean dropNewest(ILoggingEvent aEvent) {
+            return true;
+        }
+    }
+
+    /** Lets the logging thread wait for free space, and drops the new log event if there is none in time. */
+    static class Block extends OverflowPolicy {
+        private final long timeoutNanos;
+
+        Block(long aTimeoutNanos) {
+            timeoutNanos = aTimeoutNanos;
+        }
+
+        @Override
+        public long blockNanos(ILoggingEvent aEvent) {
+            return timeoutNanos;
+        }
+
+        @Override
+        public boolean dropNewest(ILoggingEvent aEvent) {
+            return true;
+        }
+    }
+
+    /** Drops new log events below the level. For the others {@link LevelLanes} evicts the oldest
+     * log event of the lowest level queued, up to the level of the new one.
+     */
+    static class LevelAware extends OverflowPolicy {
+        private final int level;
+
+        LevelAware(Level aLevel) {
+            level = aLevel.toInt();
+        }
+
+        @Override
+        public boolean dropNewest(ILoggingEvent aEvent) {
+            return aEvent.getLevel()==null || aEvent.getLevel().toInt()<level;
+        }
+    }
+}
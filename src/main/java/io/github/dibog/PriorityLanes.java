@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.Collection;
+
+/** Two queues, one for log events from a level on and one for the rest.
+ *
+ * Each lane has its own capacity, so log events of the high lane are never evicted
+ * because of log events of the low lane. The high lane is drained first and its log
+ * events are reported as urgent. Both lanes have to share the wait strategy.
+ */
+class PriorityLanes implements EventQueue<ILoggingEvent> {
+
+    private final EventQueue<ILoggingEvent> high;
+    private final EventQueue<ILoggingEvent> low;
+    private final WaitStrategy waitStrategy;
+    private final int level;
+    private final int[] result = new int[3];
+    private final WaitStrategy.Barrier pending = new WaitStrategy.Barrier() {
+        @Override
+        public boolean isAvailable() {
+            return hasPending();
+        }
+    };
+
+    /**
+     * @param aHigh the lane for log events from the level on
+     * @param aLow the lane for all other log events
+     * @param aWaitStrategy the wait strategy used by both lanes
+     * @param aLevel the lowest level of the high lane
+     */
+    public PriorityLanes(EventQueue<ILoggingEvent> aHigh, EventQueue<ILoggingEvent> aLow, WaitStrategy aWaitStrategy, Level aLevel) {
+        high = aHigh;
+        low = aLow;
+        waitStrategy = aWaitStrategy;
+        level = aLevel.toInt();
+    }
+
+    @Override
+    public boolean put(ILoggingEvent aEvent) {
+        boolean urgent = aEvent.getLevel()!=null && aEvent.getLevel().toInt()>=level;
+        return urgent ? high.put(aEvent) : low.put(aEvent);
+    }
+
+    @Override
+    public int[] drainTo(Collection<ILoggingEvent> aCollection, long aTimeoutNanos) throws InterruptedException {
+        waitStrategy.await(pending, aTimeoutNanos);
+        return drain(aCollection);
+    }
+
+    @Override
+    public int[] drain(Collection<ILoggingEvent> aCollection) {
+        int[] drained = high.drain(aCollection);
+        result[COLLECTED] = drained[COLLECTED];
+        result[SKIPPED] = drained[SKIPPED];
+        result[URGENT] = drained[COLLECTED];
+
+        drained = low.drain(aCollection);
+        result[COLLECTED] += drained[COLLECTED];
+        result[SKIPPED] += drained[SKIPPED];
+
+        return result;
+    }
+
+    @Override
+    public boolean hasPending() {
+        return high.hasPending() || low.hasPending();
+    }
+
+    @Override
+    public long queuedBytes() {
+        return high.queuedBytes()+low.queuedBytes();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.logs.model.DataAlreadyAcceptedException;
+import com.amazonaws.services.logs.model.InvalidSequenceTokenException;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Decides what to do if a PutLogEvents request failed. Not thread-safe, every sender has its own instance. */
+class RetryPolicy {
+
+    enum Decision {
+        /** Repeat the request immediately with the sequence token AWS expects. */
+        RETRY_WITH_TOKEN,
+        /** The events were already stored, continue with the sequence token AWS expects. */
+        ALREADY_ACCEPTED,
+        /** Repeat the request after a backoff. */
+        BACKOFF,
+        /** The request can't succeed, give up. */
+        FAIL
+    }
+
+    /** Sequence token retries in a row, before the token is not trusted anymore. */
+    static final int MAX_TOKEN_RETRIES = 5;
+
+    private static final Pattern EXPECTED_TOKEN = Pattern.compile("sequenceToken(?: is)?:\\s*(\\S+)");
+    private static final long BASE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(10);
+
+    private final Random random = new Random();
+
+    Decision classify(Exception aFailure) {
+        if(aFailure instanceof InvalidSequenceTokenException) {
+            return Decision.RETRY_WITH_TOKEN;
+        }
+        else if(aFailure instanceof DataAlreadyAcceptedException) {
+            return Decision.ALREADY_ACCEPTED;
+        }
+        else if(aFailure instanceof AmazonServiceException) {
+            AmazonServiceException e = (AmazonServiceException)aFailure;
+            if("ThrottlingException".equals(e.getErrorCode())
+                    || "ServiceUnavailableException".equals(e.getErrorCode())
+                    || e.getErrorType()==AmazonServiceException.ErrorType.Service) {
+                return Decision.BACKOFF;
+            }
+            return Decision.FAIL;
+        }
+        else if(aFailure instanceof SdkClientException) {
+            return ((SdkClientException)aFailure).isRetryable() ? Decision.BACKOFF : Decision.FAIL;
+        }
+        return Decision.FAIL;
+    }
+
+    /** Extracts the sequence token AWS expects from the exception, falling back to its message.
+     *
+     * @return the token or null if the exception does not contain one, which is
+     *         also what AWS expects for the first request into a new log stream
+     */
+    static String expectedToken(Exception aFailure) {
+        String token = null;
+        if(aFailure instanceof InvalidSequenceTokenException) {
+            token = ((InvalidSequenceTokenException)aFailure).getExpectedSequenceToken();
+        }
+        else if(aFailure instanceof DataAlreadyAcceptedException) {
+            token = ((DataAlreadyAcceptedException)aFailure).getExpectedSequenceToken();
+        }
+
+        if(token==null && aFailure.getMessage()!=null) {
+            Matcher m = EXPECTED_TOKEN.matcher(aFailure.getMessage());
+            if(m.find() && !"null".equals(m.group(1))) {
+                token = m.group(1);
+            }
+        }
+        return token;
+    }
+
+    /** Exponential backoff with full jitter.
+     *
+     * @param aAttempt the number of backoffs done so far for the request
+     *
+     * @return the nanos to wait before the next attempt
+     */
+    long backoff(int aAttempt) {
+        long ceiling = BASE_BACKOFF << Math.min(aAttempt, 16);
+        if(ceiling<=0 || ceiling>MAX_BACKOFF) {
+            ceiling = MAX_BACKOFF;
+        }
+        return (long)(random.nextDouble()*ceiling);
+    }
+}
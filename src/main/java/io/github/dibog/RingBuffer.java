@@ -17,26 +17,121 @@
 package io.github.dibog;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
-class RingBuffer<E> {
-    public final Lock lock = new ReentrantLock();
-    private final Condition empty = lock.newCondition();
-    private final AtomicInteger skipped = new AtomicInteger(0);
-    private final int[] result = new int[2];
+/** Lock-free multi producer / single consumer ring buffer.
+ *
+ * Producers claim a sequence number and publish their element into the slot
+ * <code>sequence % capacity</code>. If the consumer falls behind by more than
+ * the capacity, the oldest elements are overwritten and handed to the optional
+ * {@link Overflow}, or counted as skipped if it doesn't keep them.
+ * How the consumer waits for new elements is decided by the {@link WaitStrategy}.
+ *
+ * Optionally the elements are weighed by a {@link Weigher}. If their total weight exceeds
+ * the byte limit, producers replace the oldest elements by tombstones, which the consumer skips.
+ *
+ * With an {@link Admission} a producer which finds the ring buffer full may wait for free space
+ * or drop its own element instead of evicting the oldest one.
+ */
+class RingBuffer<E> implements EventQueue<E> {
+
+    /** Receives the elements which had to be removed from the full ring buffer. Called by the producers. */
+    interface Overflow<E> {
+        /** @return true if the element was kept somewhere else, false if it is lost */
+        boolean overflow(E aElement);
+    }
+
+    /** Decides what happens to a new element if the ring buffer is full. Called by the producers. */
+    interface Admission<E> {
+        /** @return the nanos to wait for free space, 0 to decide immediately */
+        long blockNanos(E aElement);
+
+        /** @return true to drop the new element, false to evict the oldest one */
+        boolean dropNewest(E aElement);
+    }
+
+    /** Estimates the memory an element occupies. Called by the producers. */
+    interface Weigher<E> {
+        int weigh(E aElement);
+    }
+
+    private static final class Node<E> {
+        final long seq;
+        /** null for a tombstone */
+        final E value;
+        final int weight;
+
+        Node(long aSeq, E aValue, int aWeight) {
+            seq = aSeq;
+            value = aValue;
+            weight = aWeight;
+        }
+    }
+
+    /** How often a blocked producer checks for free space. */
+    private static final long SPACE_POLL = TimeUnit.MICROSECONDS.toNanos(50);
 
-    private final E[] buffer;
+    private final AtomicReferenceArray<Node<E>> slots;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicInteger skipped = new AtomicInteger(0);
+    private final int[] result = new int[3];
     private final int cap;
-    private int head = 0;
-    private int size = 0;
+    private final WaitStrategy waitStrategy;
+    private final Overflow<E> overflow;
+    private final Weigher<E> weigher;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong evictFrom = new AtomicLong(0);
+    private final Admission<E> admission;
+    private final WaitStrategy.Barrier pending = new WaitStrategy.Barrier() {
+        @Override
+        public boolean isAvailable() {
+            return hasPending();
+        }
+    };
+
+    private volatile long head = 0;
 
     public RingBuffer(int aCapacity) {
+        this(aCapacity, new WaitStrategy.Blocking());
+    }
+
+    public RingBuffer(int aCapacity, WaitStrategy aWaitStrategy) {
+        this(aCapacity, aWaitStrategy, null);
+    }
+
+    public RingBuffer(int aCapacity, WaitStrategy aWaitStrategy, Overflow<E> aOverflow) {
+        this(aCapacity, aWaitStrategy, aOverflow, null, 0, null);
+    }
+
+    /**
+     * @param aCapacity the maximum number of elements
+     * @param aWaitStrategy how the consumer waits for elements
+     * @param aOverflow receives the elements removed because one of the limits was hit, or null
+     * @param aWeigher weighs the elements, or null if they shouldn't be weighed
+     * @param aMaxBytes the maximum total weight of the elements, or 0 for no limit
+     * @param aAdmission decides about new elements if the ring buffer is full, or null to always evict the oldest one
+     */
+    public RingBuffer(int aCapacity, WaitStrategy aWaitStrategy, Overflow<E> aOverflow,
+                      Weigher<E> aWeigher, long aMaxBytes, Admission<E> aAdmission) {
         if(aCapacity<=0) throw new IllegalArgumentException("Capacity must be positive");
+        if(aMaxBytes<0) throw new IllegalArgumentException("Byte limit must not be negative");
+        if(aMaxBytes>0 && aWeigher==null) throw new IllegalArgumentException("Byte limit requires a weigher");
         cap = aCapacity;
-        buffer = (E[])new Object[aCapacity];
+        slots = new AtomicReferenceArray<Node<E>>(aCapacity);
+        waitStrategy = aWaitStrategy;
+        overflow = aOverflow;
+        weigher = aWeigher;
+        maxBytes = aMaxBytes;
+        admission = aAdmission;
+    }
+
+    private int index(long aSeq) {
+        return (int)(aSeq % cap);
     }
 
     /** Adds an item to the ring buffer.
@@ -47,88 +142,220 @@ class RingBuffer<E> {
      * @return false if the item could be inserted without removing an old one
      *
      */
+    @Override
     public boolean put(E aElement) {
-        lock.lock();
+        final int weight = weigher==null ? 0 : weigher.weigh(aElement);
+        addBytes(weight);
 
-        try {
-            E prev = buffer[head];
-            buffer[head] = aElement;
+        final long seq = admission==null ? tail.getAndIncrement() : claim(aElement);
+        if(seq<0) {
+            evict(new Node<E>(seq, aElement, weight));
+            waitStrategy.signal();
+            return true;
+        }
 
-            head++;
-            if(head>=cap) {
-                head -= cap;
-            }
+        final int index = index(seq);
+        final Node<E> node = new Node<E>(seq, aElement, weight);
 
-            size++;
-            if(size>cap) {
-                size = cap;
+        Node<E> evicted;
+        for(;;) {
+            Node<E> prev = slots.get(index);
+            if(prev!=null && prev.seq>seq) {
+                // a producer one lap ahead already used this slot, so our element is the oldest one
+                evicted = node;
+                break;
             }
+            if(slots.compareAndSet(index, prev, node)) {
+                // the consumer removes what it takes, so a remaining node was never delivered
+                evicted = prev==null || prev.value==null ? null : prev;
+                break;
+            }
+        }
 
-            empty.signalAll();
+        boolean overwritten = evicted!=null;
+        if(overwritten) {
+            evict(evicted);
+        }
+        if(maxBytes>0 && bytes.get()>maxBytes) {
+            overwritten |= trim();
+        }
+
+        waitStrategy.signal();
 
-            boolean overwritten = prev!=null;
-            if(overwritten) {
-                skipped.incrementAndGet();
+        return overwritten;
+    }
+
+    /** Claims a sequence number only if there is space for the element, unless the admission decides otherwise.
+     *
+     * @return the sequence number or -1 if the element has to be dropped
+     */
+    private long claim(E aElement) {
+        boolean waited = false;
+        long deadline = 0;
+        for(;;) {
+            final long seq = tail.get();
+            if(seq-head<cap && (maxBytes==0 || bytes.get()<=maxBytes)) {
+                if(tail.compareAndSet(seq, seq+1)) {
+                    return seq;
+                }
+                continue;
+            }
+
+            if(!waited) {
+                long wait = admission.blockNanos(aElement);
+                waited = true;
+                if(wait>0) {
+                    deadline = System.nanoTime()+wait;
+                    continue;
+                }
             }
-            return overwritten;
+            else if(deadline-System.nanoTime()>0 && !Thread.currentThread().isInterrupted()) {
+                // the consumer doesn't signal the producers, so they poll for free space
+                LockSupport.parkNanos(SPACE_POLL);
+                continue;
+            }
+
+            return admission.dropNewest(aElement) ? -1 : tail.getAndIncrement();
         }
-        finally {
-            lock.unlock();
+    }
+
+    @Override
+    public long queuedBytes() {
+        return bytes.get();
+    }
+
+    private void evict(Node<E> aNode) {
+        addBytes(-aNode.weight);
+        if(overflow==null || !overflow.overflow(aNode.value)) {
+            skipped.incrementAndGet();
+        }
+    }
+
+    private void addBytes(int aDelta) {
+        if(aDelta!=0) {
+            bytes.addAndGet(aDelta);
+        }
+    }
+
+    /** Replaces the oldest elements by tombstones until the byte limit is kept again.
+     *
+     * @return true if an element was evicted
+     */
+    private boolean trim() {
+        final long limit = tail.get();
+        long cursor = Math.max(head, evictFrom.get());
+        boolean evicted = false;
+        while(bytes.get()>maxBytes && cursor<limit) {
+            final int index = index(cursor);
+            Node<E> node = slots.get(index);
+            // the consumer takes elements with the same compare-and-set, so each one is either delivered or evicted
+            if(node!=null && node.seq==cursor && node.value!=null
+                    && slots.compareAndSet(index, node, new Node<E>(cursor, null, 0))) {
+                evict(node);
+                evicted = true;
+            }
+            cursor++;
         }
+
+        skipEvicted(cursor);
+        return evicted;
     }
 
-    private int inc(int current) {
-        assert 0<=current;
+    /** Replaces the oldest element by a tombstone and hands it to the {@link Overflow}. Called by the producers.
+     *
+     * @return false if there was no element to evict
+     */
+    boolean evictOldest() {
+        final long limit = tail.get();
+        for(long cursor=Math.max(Math.max(head, evictFrom.get()), limit-cap); cursor<limit; cursor++) {
+            final int index = index(cursor);
+            Node<E> node = slots.get(index);
+            if(node!=null && node.seq==cursor && node.value!=null
+                    && slots.compareAndSet(index, node, new Node<E>(cursor, null, 0))) {
+                skipEvicted(cursor+1);
+                evict(node);
+                return true;
+            }
+        }
+        return false;
+    }
 
-        int next = current+1;
-        if(next>=cap) {
-            next = next % cap;
+    /** Lets the next producer which evicts continue behind the tombstones. */
+    private void skipEvicted(long aCursor) {
+        for(long from=evictFrom.get(); from<aCursor && !evictFrom.compareAndSet(from, aCursor); from=evictFrom.get()) {
+            // retry
         }
+    }
 
-        return next;
+    @Override
+    public boolean hasPending() {
+        final long cursor = head;
+        if(tail.get()-cursor>cap) {
+            return true;
+        }
+        Node<E> node = slots.get(index(cursor));
+        return node!=null && node.seq>=cursor;
     }
 
     /** Moves all items of the queue into the collection (FIFO).
+     * Must only be called from a single consumer thread.
      *
      * @param aCollection the collection into which the items are moved.
      *
      * @return (nbOfMessageCollected, nbOfSkippedMessages)
      */
     public int[] drainTo(Collection<E> aCollection) throws InterruptedException {
-        lock.lock();
-        try {
-
-            while(size<=0) {
-                empty.await();
-            }
-
-            final int base = head-size;
-            for(int i=0; i<size; ++i) {
-                int index = base+i;
-
-                if(index<0) {
-                    index += cap;
-                }
-                else if(index>=cap) {
-                    index -= cap;
-                }
+        return drainTo(aCollection, Long.MAX_VALUE);
+    }
 
-                E elem = buffer[index];
-                assert elem!=null;
+    /** Moves all items of the queue into the collection (FIFO), but waits at most the given time for them.
+     * Must only be called from a single consumer thread.
+     *
+     * @param aCollection the collection into which the items are moved.
+     * @param aTimeoutNanos the maximum time to wait for the first item
+     *
+     * @return (nbOfMessageCollected, nbOfSkippedMessages)
+     */
+    @Override
+    public int[] drainTo(Collection<E> aCollection, long aTimeoutNanos) throws InterruptedException {
+        if(!waitStrategy.await(pending, aTimeoutNanos)) {
+            result[COLLECTED] = 0;
+            result[SKIPPED] = skipped.getAndSet(0);
+            result[URGENT] = 0;
+            return result;
+        }
+        return drain(aCollection);
+    }
 
-                buffer[index]=null;
+    @Override
+    public int[] drain(Collection<E> aCollection) {
+        final long limit = tail.get();
+        long cursor = head;
+        if(limit-cursor>cap) {
+            cursor = limit-cap;
+        }
 
-                aCollection.add(elem);
+        int count = 0;
+        while(cursor<limit) {
+            final int index = index(cursor);
+            Node<E> node = slots.get(index);
+            if(node==null || node.seq<cursor) {
+                // claimed but not yet published, continue with it on the next drain
+                break;
             }
+            if(node.seq==cursor && slots.compareAndSet(index, node, null) && node.value!=null) {
+                addBytes(-node.weight);
+                aCollection.add(node.value);
+                count++;
+            }
+            cursor++;
+        }
+        head = cursor;
 
-            result[0] = size;
-            result[1] = skipped.getAndSet(0);
-            size = 0;
+        result[COLLECTED] = count;
+        result[SKIPPED] = skipped.getAndSet(0);
+        result[URGENT] = 0;
 
-            return result;
-        }
-        finally {
-            lock.unlock();
-        }
+        return result;
     }
 }
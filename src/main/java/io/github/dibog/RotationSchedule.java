@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/** Computes when the result of a date pattern can change next, so that it doesn't have to be formatted before.
+ *
+ * Every field of the pattern has a period, e.g. <code>yyyyMMdd_HHmm</code> changes every minute.
+ * The next boundary is the earliest one of all these periods, as e.g. the year of
+ * <code>yyyy-ww</code> doesn't change at the start of a week. The boundaries are computed in the time zone of the date format, so daylight saving time is respected.
+ * Not thread-safe.
+ */
+class RotationSchedule {
+
+    private static final int MILLIS = 0;
+    private static final int SECOND = 1;
+    private static final int MINUTE = 2;
+    private static final int HOUR = 3;
+    private static final int HALF_DAY = 4;
+    private static final int DAY = 5;
+    private static final int WEEK = 6;
+    private static final int MONTH = 7;
+    private static final int YEAR = 8;
+    private static final int NEVER = 9;
+
+    /** Bit per period used by the pattern. */
+    private final int periods;
+    private final Calendar calendar;
+
+    public RotationSchedule(String aPattern, TimeZone aTimeZone) {
+        periods = periods(aPattern);
+        calendar = Calendar.getInstance(aTimeZone);
+    }
+
+    /** @return the periods of the fields within the pattern, ignoring quoted text */
+    private static int periods(String aPattern) {
+        int periods = 0;
+        boolean quoted = false;
+        for(int i=0; i<aPattern.length(); ++i) {
+            char c = aPattern.charAt(i);
+            if(c=='\'') {
+                quoted = !quoted;
+            }
+            else if(!quoted) {
+                int period = fieldPeriod(c);
+                if(period!=NEVER) {
+                    periods |= 1<<period;
+                }
+            }
+        }
+        return periods;
+    }
+
+    private static int fieldPeriod(char aLetter) {
+        switch(aLetter) {
+            case 'S':
+                return MILLIS;
+            case 's':
+                return SECOND;
+            case 'm':
+                return MINUTE;
+            case 'H': case 'k': case 'K': case 'h':
+                return HOUR;
+            case 'a':
+                return HALF_DAY;
+            case 'd': case 'D': case 'E': case 'u': case 'F':
+                return DAY;
+            case 'w': case 'W':
+                return WEEK;
+            case 'M': case 'L':
+                return MONTH;
+            case 'y': case 'Y': case 'G':
+                return YEAR;
+            default:
+                // time zones and literals don't change with the time
+                return NEVER;
+        }
+    }
+
+    /** @return the first instant after the given one at which the formatted pattern may differ */
+    public long next(long aNow) {
+        long next = Long.MAX_VALUE;
+        for(int period=MILLIS; period<NEVER; ++period) {
+            if((periods & 1<<period)!=0) {
+                next = Math.min(next, next(aNow, period));
+            }
+        }
+        return next;
+    }
+
+    private long next(long aNow, int period) {
+        Calendar c = calendar;
+        c.setTimeInMillis(aNow);
+        if(period>=SECOND) {
+            c.set(Calendar.MILLISECOND, 0);
+        }
+        if(period>=MINUTE) {
+            c.set(Calendar.SECOND, 0);
+        }
+        if(period>=HOUR) {
+            c.set(Calendar.MINUTE, 0);
+        }
+        if(period>=HALF_DAY) {
+            c.set(Calendar.HOUR_OF_DAY, period==HALF_DAY && c.get(Calendar.HOUR_OF_DAY)>=12 ? 12 : 0);
+        }
+        if(period==WEEK) {
+            c.set(Calendar.DAY_OF_WEEK, c.getFirstDayOfWeek());
+        }
+        if(period>=MONTH) {
+            c.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        if(period>=YEAR) {
+            c.set(Calendar.MONTH, Calendar.JANUARY);
+        }
+
+        switch(period) {
+            case MILLIS:   c.add(Calendar.MILLISECOND, 1); break;
+            case SECOND:   c.add(Calendar.SECOND, 1); break;
+            case MINUTE:   c.add(Calendar.MINUTE, 1); break;
+            case HOUR:     c.add(Calendar.HOUR_OF_DAY, 1); break;
+            case HALF_DAY: c.add(Calendar.HOUR_OF_DAY, 12); break;
+            case DAY:      c.add(Calendar.DAY_OF_MONTH, 1); break;
+            case WEEK:     c.add(Calendar.WEEK_OF_YEAR, 1); break;
+            case MONTH:    c.add(Calendar.MONTH, 1); break;
+            default:       c.add(Calendar.YEAR, 1); break;
+        }
+
+        // a boundary which comes too early only costs another check, one in the past would stall the rotation
+        return Math.max(c.getTimeInMillis(), aNow+1);
+    }
+}
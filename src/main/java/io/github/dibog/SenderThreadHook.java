@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+/** Called by the background thread of the appender, and of every shard, before it starts to send log events.
+ *
+ * Configured with <code>&lt;threadHook class="..."/&gt;</code>, e.g. to pin the thread to a CPU which
+ * isn't used by latency critical threads. It runs on the background thread itself, as most affinity
+ * libraries can only bind the calling thread.
+ */
+public interface SenderThreadHook {
+
+    void started(Thread aThread);
+}
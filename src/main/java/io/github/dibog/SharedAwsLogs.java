@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import com.amazonaws.services.logs.AWSLogsAsync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Process wide registry of AWS clients, shared by all appenders and shards with an equal {@link AwsConfig}.
+ *
+ * Every client has its own HTTP connection pool and a bounded pool of threads for the asynchronous
+ * requests, so sharing it saves connections, TLS handshakes and threads. Synchronous requests are
+ * run by the calling thread. The clients are reference counted and shut down with the last user.
+ * Appenders which use virtual threads get a client whose asynchronous requests run on virtual threads as well.
+ */
+final class SharedAwsLogs {
+
+    private static final Map<List<Object>, SharedAwsLogs> CLIENTS = new HashMap<>();
+
+    private final List<Object> key;
+    private final AWSLogsAsync client;
+    private int references = 0;
+
+    private SharedAwsLogs(List<Object> aKey, AWSLogsAsync aClient) {
+        key = aKey;
+        client = aClient;
+    }
+
+    /**
+     * @param aConfig the configuration of the client
+     * @param aVirtualThreads whether the asynchronous requests should run on virtual threads
+     *
+     * @return the client for the configuration, which has to be released after use
+     */
+    static SharedAwsLogs acquire(AwsConfig aConfig, boolean aVirtualThreads) {
+        List<Object> key = new ArrayList<>(aConfig.key());
+        key.add(aVirtualThreads);
+        synchronized(CLIENTS) {
+            SharedAwsLogs shared = CLIENTS.get(key);
+            if(shared==null) {
+                ThreadFactory threads = aVirtualThreads ? VirtualThreads.factory("aws-log-client-") : null;
+                if(threads==null) {
+                    threads = new DaemonThreads("aws-log-client-");
+                }
+                // the client shuts the executor down together with itself
+                shared = new SharedAwsLogs(key, aConfig.createAWSLogsAsync(
+                        Executors.newFixedThreadPool(aConfig.getSenderThreads(), threads)));
+                CLIENTS.put(key, shared);
+            }
+            shared.references++;
+            return shared;
+        }
+    }
+
+    public AWSLogsAsync client() {
+        return client;
+    }
+
+    public void release() {
+        synchronized(CLIENTS) {
+            if(--references>0) {
+                return;
+            }
+            CLIENTS.remove(key);
+        }
+        client.shutdown();
+    }
+}
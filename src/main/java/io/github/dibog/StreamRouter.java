@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/** Decides into which log stream, and optionally log group, a log event goes.
+ *
+ * Rules of the form <code>logger-prefix=stream</code> or <code>logger-prefix=group:stream</code> are
+ * tried first, the longest matching logger prefix wins. Otherwise the value of the MDC key is appended
+ * to the name of the default log stream. All other log events go into the default log stream.
+ *
+ * The route is decided by the logging thread, as the MDC isn't kept once an event is encoded.
+ * It is either a rule or the MDC value, so no route has to be allocated per event.
+ */
+class StreamRouter {
+
+    /** Maximum length of the name of a log stream. */
+    static final int MAX_STREAM_NAME = 512;
+
+    private static final class Rule {
+        final String loggerPrefix;
+        final String groupName;
+        final String streamName;
+
+        Rule(String aLoggerPrefix, String aGroupName, String aStreamName) {
+            loggerPrefix = aLoggerPrefix;
+            groupName = aGroupName;
+            streamName = aStreamName;
+        }
+
+        boolean matches(String aLoggerName) {
+            // com.acme matches com.acme and com.acme.Foo, but not com.acmeFoo
+            return aLoggerName.startsWith(loggerPrefix)
+                    && (aLoggerName.length()==loggerPrefix.length() || aLoggerName.charAt(loggerPrefix.length())=='.');
+        }
+    }
+
+    private final Rule[] rules;
+    private final String mdcKey;
+
+    private StreamRouter(Rule[] aRules, String aMdcKey) {
+        rules = aRules;
+        mdcKey = aMdcKey;
+    }
+
+    /**
+     * @param aRules the routing rules by logger prefix
+     * @param aMdcKey the MDC key whose value selects the log stream or null
+     *
+     * @return the router or null if nothing has to be routed
+     */
+    static StreamRouter create(List<String> aRules, String aMdcKey) {
+        String mdcKey = aMdcKey==null || aMdcKey.trim().isEmpty() ? null : aMdcKey.trim();
+        if(aRules.isEmpty() && mdcKey==null) {
+            return null;
+        }
+
+        Rule[] rules = new Rule[aRules.size()];
+        for(int i=0; i<rules.length; ++i) {
+            rules[i] = parse(aRules.get(i));
+        }
+        Arrays.sort(rules, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule aLeft, Rule aRight) {
+                return aRight.loggerPrefix.length()-aLeft.loggerPrefix.length();
+            }
+        });
+        return new StreamRouter(rules, mdcKey);
+    }
+
+    private static Rule parse(String aRule) {
+        int assign = aRule.indexOf('=');
+        if(assign<=0 || assign==aRule.length()-1) {
+            throw new IllegalArgumentException("Invalid route '"+aRule+"', expected logger-prefix=stream or logger-prefix=group:stream");
+        }
+
+        String loggerPrefix = aRule.substring(0, assign).trim();
+        String target = aRule.substring(assign+1).trim();
+        // ':' is allowed neither in names of log groups nor of log streams
+        int colon = target.indexOf(':');
+        if(colon<0) {
+            return new Rule(loggerPrefix, null, target);
+        }
+        if(colon==0 || colon==target.length()-1) {
+            throw new IllegalArgumentException("Invalid route '"+aRule+"', expected logger-prefix=stream or logger-prefix=group:stream");
+        }
+        return new Rule(loggerPrefix, target.substring(0, colon), target.substring(colon+1));
+    }
+
+    /** @return the route of the log event or null for the default log stream */
+    public Object route(ILoggingEvent aEvent) {
+        String loggerName = aEvent.getLoggerName();
+        if(loggerName!=null) {
+            for(Rule rule : rules) {
+                if(rule.matches(loggerName)) {
+                    return rule;
+                }
+            }
+        }
+
+        if(mdcKey!=null) {
+            Map<String, String> mdc = aEvent.getMDCPropertyMap();
+            String value = mdc==null ? null : mdc.get(mdcKey);
+            if(value!=null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /** @return the log group of the route */
+    public String groupName(Object aRoute, String aDefaultGroupName) {
+        if(aRoute instanceof Rule && ((Rule)aRoute).groupName!=null) {
+            return ((Rule)aRoute).groupName;
+        }
+        return aDefaultGroupName;
+    }
+
+    /** @return the log stream of the route, without the suffix of the date format */
+    public String streamName(Object aRoute, String aDefaultStreamName) {
+        if(aRoute instanceof Rule) {
+            return ((Rule)aRoute).streamName;
+        }
+
+        // the MDC value may be anything, even a whole request
+        String value = (String)aRoute;
+        StringBuilder name = new StringBuilder(Math.min(MAX_STREAM_NAME, aDefaultStreamName.length()+1+value.length()))
+                .append(aDefaultStreamName).append('-');
+        for(int i=0; i<value.length() && name.length()<MAX_STREAM_NAME; ++i) {
+            char c = value.charAt(i);
+            if(Character.isHighSurrogate(c) && i+1<value.length() && Character.isLowSurrogate(value.charAt(i+1))) {
+                name.append(c).append(value.charAt(++i));
+            }
+            else {
+                // not allowed in names of log streams, not readable, or not even valid UTF-16
+                name.append(c==':' || c=='*' || Character.isISOControl(c) || Character.isSurrogate(c) ? '_' : c);
+            }
+        }
+        return truncate(name.toString(), MAX_STREAM_NAME);
+    }
+
+    /** @return the name of the log stream with the suffix, shortened so that it doesn't exceed the limit of AWS */
+    static String withSuffix(String aBaseName, String aSuffix) {
+        return truncate(aBaseName, MAX_STREAM_NAME-aSuffix.length())+aSuffix;
+    }
+
+    private static String truncate(String aName, int aLength) {
+        if(aName.length()<=aLength) {
+            return aName;
+        }
+
+        int end = Math.max(0, aLength);
+        if(end>0 && Character.isHighSurrogate(aName.charAt(end-1))) {
+            // don't split a surrogate pair
+            end--;
+        }
+        return aName.substring(0, end);
+    }
+}
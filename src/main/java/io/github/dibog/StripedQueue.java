@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/** Several ring buffers, each of them used by the logging threads whose id hashes to it.
+ *
+ * So the logging threads don't compete for the tail of a single ring buffer. The consumer
+ * drains all stripes and merges them by the comparator, which keeps the elements of every
+ * stripe in their order. All stripes have to share the wait strategy.
+ */
+class StripedQueue<E> implements EventQueue<E> {
+
+    private final RingBuffer<E>[] stripes;
+    private final List<List<E>> drained;
+    private final Comparator<? super E> order;
+    private final WaitStrategy waitStrategy;
+    private final int[] heap;
+    private final int[] positions;
+    private final int[] result = new int[3];
+    private final WaitStrategy.Barrier pending = new WaitStrategy.Barrier() {
+        @Override
+        public boolean isAvailable() {
+            return hasPending();
+        }
+    };
+
+    /**
+     * @param aStripes the ring buffers
+     * @param aOrder the order in which the elements of the stripes are merged
+     * @param aWaitStrategy the wait strategy used by all stripes
+     */
+    public StripedQueue(RingBuffer<E>[] aStripes, Comparator<? super E> aOrder, WaitStrategy aWaitStrategy) {
+        if(aStripes.length==0) throw new IllegalArgumentException("At least one stripe is required");
+        stripes = aStripes;
+        order = aOrder;
+        waitStrategy = aWaitStrategy;
+        heap = new int[aStripes.length];
+        positions = new int[aStripes.length];
+        drained = new ArrayList<>(aStripes.length);
+        for(int i=0; i<aStripes.length; ++i) {
+            drained.add(new ArrayList<E>());
+        }
+    }
+
+    private int stripe() {
+        // the thread ids are also used to select the shard, so they are mixed to not use only some stripes per shard
+        long hash = Thread.currentThread().getId()*0x9E3779B97F4A7C15L;
+        return (int)((hash>>>32)%stripes.length);
+    }
+
+    @Override
+    public boolean put(E aElement) {
+        return stripes[stripe()].put(aElement);
+    }
+
+    @Override
+    public int[] drainTo(Collection<E> aCollection, long aTimeoutNanos) throws InterruptedException {
+        waitStrategy.await(pending, aTimeoutNanos);
+        return drain(aCollection);
+    }
+
+    @Override
+    public int[] drain(Collection<E> aCollection) {
+        int collected = 0;
+        int skipped = 0;
+        int size = 0;
+        for(int i=0; i<stripes.length; ++i) {
+            int[] stripe = stripes[i].drain(drained.get(i));
+            collected += stripe[COLLECTED];
+            skipped += stripe[SKIPPED];
+            positions[i] = 0;
+            if(!drained.get(i).isEmpty()) {
+                heap[size++] = i;
+            }
+        }
+
+        merge(aCollection, size);
+
+        result[COLLECTED] = collected;
+        result[SKIPPED] = skipped;
+        result[URGENT] = 0;
+        return result;
+    }
+
+    /** K-way merge of the drained stripes with a heap of stripe indexes, ordered by their next element. */
+    private void merge(Collection<E> aCollection, int aSize) {
+        int size = aSize;
+        for(int i=size/2-1; i>=0; --i) {
+            siftDown(i, size);
+        }
+
+        while(size>0) {
+            int stripe = heap[0];
+            List<E> elements = drained.get(stripe);
+            aCollection.add(elements.get(positions[stripe]++));
+            if(positions[stripe]==elements.size()) {
+                elements.clear();
+                heap[0] = heap[--size];
+            }
+            siftDown(0, size);
+        }
+    }
+
+    private void siftDown(int aIndex, int aSize) {
+        int index = aIndex;
+        for(;;) {
+            int smallest = index;
+            int left = 2*index+1;
+            int right = left+1;
+            if(left<aSize && less(heap[left], heap[smallest])) {
+                smallest = left;
+            }
+            if(right<aSize && less(heap[right], heap[smallest])) {
+                smallest = right;
+            }
+            if(smallest==index) {
+                return;
+            }
+            int swap = heap[index];
+            heap[index] = heap[smallest];
+            heap[smallest] = swap;
+            index = smallest;
+        }
+    }
+
+    private boolean less(int aStripe, int bStripe) {
+        return order.compare(drained.get(aStripe).get(positions[aStripe]), drained.get(bStripe).get(positions[bStripe]))<0;
+    }
+
+    @Override
+    public boolean hasPending() {
+        for(RingBuffer<E> stripe : stripes) {
+            if(stripe.hasPending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long queuedBytes() {
+        long bytes = 0;
+        for(RingBuffer<E> stripe : stripes) {
+            bytes += stripe.queuedBytes();
+        }
+        return bytes;
+    }
+}
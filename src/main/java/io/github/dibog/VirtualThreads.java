@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/** Creates virtual threads on Java 21 and later.
+ *
+ * The project is still built for Java 7, so the API is looked up by reflection.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /** @return a factory for virtual threads named with the prefix and a counter, or null if the JVM has none */
+    static ThreadFactory factory(String aNamePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // the builder itself is an internal class, so its methods are taken from the public interface
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, aNamePrefix, 0L);
+            return (ThreadFactory)builderType.getMethod("factory").invoke(builder);
+        }
+        catch(NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
+            return null;
+        }
+        catch(InvocationTargetException e) {
+            // Java 19 and 20 only have them as preview feature
+            return null;
+        }
+    }
+}
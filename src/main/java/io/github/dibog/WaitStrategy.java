@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** Decides how the consumer of a {@link RingBuffer} waits for new elements.
+ *
+ * A strategy instance keeps state about the waiting consumer and must therefore
+ * only be used by a single consumer, even though it may wait for several ring buffers.
+ */
+abstract class WaitStrategy {
+
+    static final String BLOCKING = "blocking";
+    static final String SLEEPING = "sleeping";
+    static final String YIELDING = "yielding";
+    static final String BUSY_SPIN = "busy-spin";
+    static final String PHASED = "phased";
+
+    interface Barrier {
+        boolean isAvailable();
+    }
+
+    /** Waits until the barrier becomes available or the timeout elapsed.
+     *
+     * @param aBarrier the condition to wait for
+     * @param aTimeoutNanos the maximum time to wait, Long.MAX_VALUE means forever
+     *
+     * @return true if the barrier is available
+     */
+    abstract boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException;
+
+    /** Called by the producers after publishing an element. */
+    void signal() {
+    }
+
+    static WaitStrategy forName(String aName) {
+        if(aName==null || aName.trim().isEmpty() || BLOCKING.equalsIgnoreCase(aName.trim())) {
+            return new Blocking();
+        }
+
+        String name = aName.trim();
+        if(SLEEPING.equalsIgnoreCase(name)) {
+            return new Sleeping();
+        }
+        else if(YIELDING.equalsIgnoreCase(name)) {
+            return new Yielding();
+        }
+        else if(BUSY_SPIN.equalsIgnoreCase(name)) {
+            return new BusySpin();
+        }
+        else if(PHASED.equalsIgnoreCase(name)) {
+            return new PhasedBackoff(TimeUnit.MICROSECONDS.toNanos(20), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        throw new IllegalArgumentException("Unknown wait strategy '"+aName+"', expected one of "
+                +BLOCKING+", "+SLEEPING+", "+YIELDING+", "+BUSY_SPIN+" or "+PHASED);
+    }
+
+    private static long deadline(long aTimeoutNanos) {
+        return aTimeoutNanos==Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime()+aTimeoutNanos;
+    }
+
+    private static long remaining(long aDeadline) {
+        return aDeadline==Long.MAX_VALUE ? Long.MAX_VALUE : aDeadline-System.nanoTime();
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /** Parks the consumer until a producer signals it. Lowest idle cost, highest wake-up latency. */
+    static class Blocking extends WaitStrategy {
+        private volatile Thread waiter = null;
+
+        @Override
+        boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException {
+            final long deadline = deadline(aTimeoutNanos);
+            while(!aBarrier.isAvailable()) {
+                long remaining = remaining(deadline);
+                if(remaining<=0) {
+                    return false;
+                }
+
+                waiter = Thread.currentThread();
+                try {
+                    if(!aBarrier.isAvailable()) {
+                        if(remaining==Long.MAX_VALUE) {
+                            LockSupport.park(this);
+                        }
+                        else {
+                            LockSupport.parkNanos(this, remaining);
+                        }
+                    }
+                }
+                finally {
+                    waiter = null;
+                }
+                checkInterrupted();
+            }
+            return true;
+        }
+
+        @Override
+        void signal() {
+            Thread consumer = waiter;
+            if(consumer!=null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /** Polls and sleeps a short time between the polls. Producers never have to wake up the consumer. */
+    static class Sleeping extends WaitStrategy {
+        private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+        @Override
+        boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException {
+            final long deadline = deadline(aTimeoutNanos);
+            while(!aBarrier.isAvailable()) {
+                long remaining = remaining(deadline);
+                if(remaining<=0) {
+                    return false;
+                }
+                LockSupport.parkNanos(Math.min(SLEEP_NANOS, remaining));
+                checkInterrupted();
+            }
+            return true;
+        }
+    }
+
+    /** Spins a few times and then yields the CPU between the polls. */
+    static class Yielding extends WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException {
+            final long deadline = deadline(aTimeoutNanos);
+            int counter = SPIN_TRIES;
+            while(!aBarrier.isAvailable()) {
+                if(counter>0) {
+                    counter--;
+                }
+                else {
+                    if(remaining(deadline)<=0) {
+                        return false;
+                    }
+                    Thread.yield();
+                    checkInterrupted();
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Burns a whole CPU core while waiting, but has the lowest latency. */
+    static class BusySpin extends WaitStrategy {
+        @Override
+        boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException {
+            final long deadline = deadline(aTimeoutNanos);
+            while(!aBarrier.isAvailable()) {
+                if(remaining(deadline)<=0) {
+                    return false;
+                }
+                checkInterrupted();
+            }
+            return true;
+        }
+    }
+
+    /** Spins first, then yields and finally falls back to blocking. */
+    static class PhasedBackoff extends WaitStrategy {
+        private final long spinNanos;
+        private final long yieldNanos;
+        private final Blocking fallback = new Blocking();
+
+        PhasedBackoff(long aSpinNanos, long aYieldNanos) {
+            spinNanos = aSpinNanos;
+            yieldNanos = aYieldNanos;
+        }
+
+        @Override
+        boolean await(Barrier aBarrier, long aTimeoutNanos) throws InterruptedException {
+            final long start = System.nanoTime();
+            final long deadline = deadline(aTimeoutNanos);
+            while(!aBarrier.isAvailable()) {
+                long now = System.nanoTime();
+                if(deadline!=Long.MAX_VALUE && deadline-now<=0) {
+                    return false;
+                }
+
+                long waited = now-start;
+                if(waited<spinNanos) {
+                    continue;
+                }
+                else if(waited<spinNanos+yieldNanos) {
+                    Thread.yield();
+                    checkInterrupted();
+                }
+                else {
+                    return fallback.await(aBarrier, remaining(deadline));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void signal() {
+            fallback.signal();
+        }
+    }
+}
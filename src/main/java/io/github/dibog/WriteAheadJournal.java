@@ -0,0 +1,428 @@
+/*
+ * Copyright 2018  Dieter Bogdoll
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.dibog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Write-ahead journal of encoded log events.
+ *
+ * Every event is appended before it is queued. The logging threads reserve the position of their
+ * record with a compare-and-set on the end of the journal and write it there, so they don't wait for
+ * each other. The records are therefore neither queued nor sent in the order of the journal, and the
+ * sender acknowledges the ranges of the events which AWS accepted, or which were given up. The
+ * checkpoint only moves across acknowledged ranges without a gap, so an event which is still queued,
+ * or which has to be read again after it didn't fit into the queue, holds it back. After a crash the
+ * events behind the checkpoint are sent again. The journal is split into segment files named
+ * <code>prefix.offset.journal</code>, which are deleted as soon as the checkpoint passed them.
+ *
+ * Layout of a record: <code>[int length] [long timestamp] [byte[length] utf-8 message]</code>
+ *
+ * Appending doesn't wait for the disk, {@link #sync()} has to be called periodically for that.
+ * As the records are written concurrently, a crash can leave a record incomplete while later ones
+ * are complete. The recovery stops reading a segment at its first incomplete record.
+ */
+class WriteAheadJournal {
+
+    private static final String SUFFIX = ".journal";
+    private static final int RECORD_HEADER = 12;
+
+    private static final class Segment {
+        final long base;
+        final File file;
+        final FileChannel channel;
+        /** The offset after the last record, or Long.MAX_VALUE as long as records are appended to the segment. */
+        volatile long limit = Long.MAX_VALUE;
+
+        Segment(long aBase, File aFile) throws IOException {
+            base = aBase;
+            file = aFile;
+            channel = new RandomAccessFile(aFile, "rw").getChannel();
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final long segmentBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final FileChannel checkpointChannel;
+    private final ByteBuffer checkpointBuffer = ByteBuffer.allocate(8);
+    /** Acknowledged ranges behind the checkpoint, by their start. */
+    private final TreeMap<Long, Long> acknowledged = new TreeMap<>();
+    private final long recoveredEnd;
+
+    private final AtomicLong end = new AtomicLong();
+    private volatile Segment current;
+    private long checkpoint;
+    private volatile boolean dirty = false;
+
+    public WriteAheadJournal(File aDirectory, String aPrefix, long aSegmentBytes) throws IOException {
+        directory = aDirectory;
+        prefix = aPrefix;
+        segmentBytes = aSegmentBytes;
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create journal directory "+directory);
+        }
+
+        checkpointChannel = new RandomAccessFile(new File(directory, prefix+".checkpoint"), "rw").getChannel();
+        checkpoint = 0;
+        if(checkpointChannel.size()>=8) {
+            checkpointChannel.read(checkpointBuffer, 0);
+            checkpointBuffer.flip();
+            checkpoint = checkpointBuffer.getLong();
+        }
+
+        recover();
+        recoveredEnd = end.get();
+    }
+
+    private synchronized void recover() throws IOException {
+        final String namePrefix = prefix+".";
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File aDir, String aName) {
+                return aName.startsWith(namePrefix) && aName.endsWith(SUFFIX);
+            }
+        });
+
+        List<Long> bases = new ArrayList<>();
+        for(String name : names==null ? new String[0] : names) {
+            try {
+                bases.add(Long.parseLong(name.substring(namePrefix.length(), name.length()-SUFFIX.length())));
+            }
+            catch(NumberFormatException e) {
+                // not one of our segments
+            }
+        }
+        Collections.sort(bases);
+
+        for(Long base : bases) {
+            segments.addLast(new Segment(base, segmentFile(base)));
+        }
+
+        if(segments.isEmpty()) {
+            segments.addLast(new Segment(checkpoint, segmentFile(checkpoint)));
+            end.set(checkpoint);
+        }
+        else {
+            // a crash might have left incomplete records behind
+            Segment previous = null;
+            for(Segment segment : segments) {
+                segment.limit = segment.base+validSize(segment);
+                if(previous!=null && previous.limit<segment.base) {
+                    // the records behind an incomplete one can't be read, so they are given up
+                    remember(previous.limit, segment.base);
+                }
+                previous = segment;
+            }
+            previous.channel.truncate(previous.limit-previous.base);
+            end.set(previous.limit);
+        }
+
+        current = segments.peekLast();
+        current.limit = Long.MAX_VALUE;
+        if(checkpoint>end.get() || checkpoint<segments.peekFirst().base) {
+            checkpoint = Math.min(Math.max(checkpoint, segments.peekFirst().base), end.get());
+        }
+        advance();
+        removeAcknowledged();
+    }
+
+    private File segmentFile(long aBase) {
+        return new File(directory, prefix+"."+aBase+SUFFIX);
+    }
+
+    private long validSize(Segment aSegment) throws IOException {
+        long size = aSegment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long pos = 0;
+        while(pos+RECORD_HEADER<=size) {
+            header.clear();
+            aSegment.channel.read(header, pos);
+            int length = header.getInt(0);
+            // a reserved record which was never written is all zeros
+            if(length<0 || (length==0 && header.getLong(4)==0) || pos+RECORD_HEADER+length>size) {
+                break;
+            }
+            pos += RECORD_HEADER+length;
+        }
+        return pos;
+    }
+
+    /** @return the size of the record of a message with the given UTF-8 size */
+    static int recordSize(int aMessageBytes) {
+        return RECORD_HEADER+aMessageBytes;
+    }
+
+    /** Appends a log event. The position of the record is reserved without a lock, only the
+     * logging thread which finds the current segment full takes one to start the next.
+     *
+     * @param aMessage the UTF-8 encoded message
+     *
+     * @return the journal offset of the record, which ends {@link #recordSize(int)} bytes later
+     */
+    public long append(long aTimestamp, byte[] aMessage) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordSize(aMessage.length));
+        record.putInt(aMessage.length);
+        record.putLong(aTimestamp);
+        record.put(aMessage);
+        record.flip();
+
+        for(;;) {
+            Segment segment = current;
+            long start = end.get();
+            if(start-segment.base>=segmentBytes) {
+                roll(segment, start);
+                continue;
+            }
+            if(!end.compareAndSet(start, start+record.remaining())) {
+                continue;
+            }
+
+            try {
+                long pos = start-segment.base;
+                while(record.hasRemaining()) {
+                    pos += segment.channel.write(record, pos);
+                }
+            }
+            catch(IOException e) {
+                // nobody will acknowledge the reserved range, it must not hold the checkpoint back
+                try {
+                    acknowledge(start, start+record.capacity());
+                }
+                catch(IOException ignored) {
+                    // the first exception is the one to report
+                }
+                throw e;
+            }
+            dirty = true;
+            return start;
+        }
+    }
+
+    /** Starts the next segment. As the end of the journal is at least the size of a segment behind
+     * the base of the full one, no other logging thread reserves a position until it is published.
+     */
+    private synchronized void roll(Segment aFull, long aEnd) throws IOException {
+        if(current!=aFull) {
+            // another logging thread was faster
+            return;
+        }
+
+        aFull.limit = aEnd;
+        Segment next = new Segment(aEnd, segmentFile(aEnd));
+        segments.addLast(next);
+        current = next;
+    }
+
+    /** Forces the appended events and the checkpoint to the disk. */
+    public void sync() throws IOException {
+        if(!dirty) {
+            return;
+        }
+
+        List<Segment> snapshot;
+        synchronized(this) {
+            dirty = false;
+            snapshot = new ArrayList<>(segments);
+        }
+        // outside of the lock, so that neither the sender nor a logging thread starting a segment waits for the disk,
+        // all segments as records may still have been written into a full one
+        for(Segment segment : snapshot) {
+            try {
+                segment.channel.force(false);
+            }
+            catch(ClosedChannelException e) {
+                // deleted meanwhile, because the checkpoint passed it
+            }
+        }
+        checkpointChannel.force(false);
+    }
+
+    /** Stores that the events of the range were acknowledged by AWS, or given up. The checkpoint
+     * only moves once the events in front of them are acknowledged as well.
+     */
+    public synchronized void acknowledge(long aStart, long aEnd) throws IOException {
+        if(aEnd>checkpoint) {
+            remember(Math.max(aStart, checkpoint), aEnd);
+            advance();
+        }
+    }
+
+    /** Stores that the events of all ranges were acknowledged by AWS, or given up. */
+    public synchronized void acknowledge(JournalRanges aRanges) throws IOException {
+        if(aRanges.isEmpty()) {
+            return;
+        }
+        for(int i=0, count=aRanges.count(); i<count; ++i) {
+            if(aRanges.end(i)>checkpoint) {
+                remember(Math.max(aRanges.start(i), checkpoint), aRanges.end(i));
+            }
+        }
+        advance();
+    }
+
+    /** Adds the range to the acknowledged ones and merges it with the ranges it touches. */
+    private void remember(long aStart, long aEnd) {
+        long start = aStart;
+        long stop = aEnd;
+        Map.Entry<Long, Long> before = acknowledged.floorEntry(start);
+        if(before!=null && before.getValue()>=start) {
+            start = before.getKey();
+        }
+        for(Map.Entry<Long, Long> after = acknowledged.ceilingEntry(start);
+                after!=null && after.getKey()<=stop; after = acknowledged.ceilingEntry(start)) {
+            stop = Math.max(stop, after.getValue());
+            acknowledged.remove(after.getKey());
+        }
+        acknowledged.put(start, stop);
+    }
+
+    /** Moves the checkpoint behind the acknowledged ranges which start at or in front of it. */
+    private void advance() throws IOException {
+        long next = checkpoint;
+        for(Map.Entry<Long, Long> first = acknowledged.firstEntry();
+                first!=null && first.getKey()<=next; first = acknowledged.firstEntry()) {
+            next = Math.max(next, first.getValue());
+            acknowledged.remove(first.getKey());
+        }
+        if(next==checkpoint) {
+            return;
+        }
+
+        checkpoint = Math.min(next, end.get());
+        checkpointBuffer.clear();
+        checkpointBuffer.putLong(0, checkpoint);
+        checkpointChannel.write(checkpointBuffer, 0);
+        dirty = true;
+
+        removeAcknowledged();
+    }
+
+    private void removeAcknowledged() throws IOException {
+        // the last segment is the current one
+        while(segments.size()>1) {
+            Segment first = segments.peekFirst();
+            if(first.limit>checkpoint) {
+                break;
+            }
+            segments.removeFirst();
+            first.channel.close();
+            if(!first.file.delete()) {
+                throw new IOException("Couldn't delete journal segment "+first.file);
+            }
+        }
+    }
+
+    public synchronized long checkpoint() {
+        return checkpoint;
+    }
+
+    /** @return the bytes from the checkpoint to the end, which the journal keeps on the disk */
+    public synchronized long pendingBytes() {
+        return end.get()-checkpoint;
+    }
+
+    /** @return the end of the journal when it was opened, events up to there are from a previous run */
+    public long recoveredEnd() {
+        return recoveredEnd;
+    }
+
+    /** Reads the events starting at the given offset into the batch, together with their journal ranges.
+     *
+     * @param aPosition the offset of the first event to read
+     * @param aLimit the offset at which to stop reading
+     * @param aBatch the batch into which the events are added
+     * @param aMaxEvents the maximum number of events to read
+     * @param aMaxBytes the maximum size of the events as accounted by {@link LogEventBatch}
+     *
+     * @return the offset after the last event read
+     */
+    public long read(long aPosition, long aLimit, LogEventBatch aBatch, int aMaxEvents, long aMaxBytes) throws IOException {
+        List<Segment> snapshot;
+        synchronized(this) {
+            snapshot = new ArrayList<>(segments);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        long position = aPosition;
+        long bytes = 0;
+        int count = 0;
+        for(Segment segment : snapshot) {
+            long limit = Math.min(segment.limit, end.get());
+            if(position>=limit) {
+                continue;
+            }
+            if(position<segment.base) {
+                // the rest of the previous segment was given up by the recovery
+                position = segment.base;
+            }
+
+            while(position+RECORD_HEADER<=limit) {
+                if(count>=aMaxEvents || position>=aLimit) {
+                    return position;
+                }
+
+                header.clear();
+                segment.channel.read(header, position-segment.base);
+                int length = header.getInt(0);
+                long timestamp = header.getLong(4);
+                if(count>0 && bytes+length+LogEventBatch.EVENT_OVERHEAD>aMaxBytes) {
+                    return position;
+                }
+
+                ByteBuffer message = ByteBuffer.allocate(length);
+                segment.channel.read(message, position-segment.base+RECORD_HEADER);
+                long start = position;
+                position += RECORD_HEADER+length;
+                aBatch.add(timestamp, new String(message.array(), StandardCharsets.UTF_8), length, start, position);
+
+                bytes += length+LogEventBatch.EVENT_OVERHEAD;
+                count++;
+            }
+        }
+        return position;
+    }
+
+    public synchronized void close() {
+        try {
+            sync();
+            for(Segment segment : segments) {
+                segment.channel.close();
+            }
+            checkpointChannel.close();
+        }
+        catch(IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.github.dibog;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.amazonaws.services.logs.AbstractAWSLogs;
+import com.amazonaws.services.logs.model.CreateLogStreamRequest;
+import com.amazonaws.services.logs.model.CreateLogStreamResult;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures the bytes the sender thread of a real {@link AwsCWEventDump} allocates per batch, from draining
+ * the queue until the request was handed to AWS. AWS is replaced by a stub which doesn't allocate anything.
+ *
+ * The events are encoded by the logging thread, so the only allocations expected in the steady state are the
+ * boxed timestamp of every InputLogEvent and the view of the batch for its single chunk. Exits with 1 if more is allocated.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=io.github.dibog.DrainAllocationBenchmark -Dexec.classpathScope=test
+ */
+public class DrainAllocationBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int WARM_UP = 2000;
+    private static final int BATCHES = 1000;
+    /** Size of a Long with compressed class pointers: 12 bytes header, 8 bytes value, aligned to 8. */
+    private static final long BOXED_TIMESTAMP = 24;
+    /** Upper bound of the size of the sub list which is sent as a chunk. */
+    private static final long CHUNK_VIEW = 48;
+
+    /** Accepts every request with the same result. */
+    private static class StubAWSLogs extends AbstractAWSLogs {
+        final AtomicLong received = new AtomicLong();
+        private final PutLogEventsResult result = new PutLogEventsResult();
+
+        @Override
+        public CreateLogStreamResult createLogStream(CreateLogStreamRequest aRequest) {
+            return null;
+        }
+
+        @Override
+        public PutLogEventsResult putLogEvents(PutLogEventsRequest aRequest) {
+            received.addAndGet(aRequest.getLogEvents().size());
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+        LoggerContext context = new LoggerContext();
+        AwsLogAppender appender = new AwsLogAppender();
+        appender.setContext(context);
+        appender.setGroupName("benchmark");
+        appender.setStreamName("benchmark");
+        appender.setCreateLogGroup(false);
+        appender.setEncodeOnAppend(true);
+        appender.setQueueLength(BATCH_SIZE);
+        appender.setMaxBatchEvents(BATCH_SIZE);
+        // the batches are only sent once they are full
+        appender.setLingerMs(60000);
+
+        AwsCWEventDump dump = new AwsCWEventDump(appender);
+        StubAWSLogs stub = new StubAWSLogs();
+        // the dump creates its client when it starts to send, unless it already has one
+        Field client = AwsCWEventDump.class.getDeclaredField("awsLogs");
+        client.setAccessible(true);
+        client.set(dump, stub);
+
+        LoggingEvent[] events = new LoggingEvent[BATCH_SIZE];
+        for(int i=0; i<BATCH_SIZE; ++i) {
+            events[i] = new LoggingEvent();
+            events[i].setLoggerName("benchmark");
+            events[i].setLevel(Level.INFO);
+            events[i].setMessage("log event "+i);
+            events[i].setTimeStamp(System.currentTimeMillis()+i);
+            events[i].setLoggerContextRemoteView(context.getLoggerContextRemoteView());
+        }
+
+        Thread sender = new Thread(dump, "benchmark-sender");
+        sender.setDaemon(true);
+        sender.start();
+
+        for(int i=0; i<WARM_UP; ++i) {
+            cycle(dump, stub, events);
+        }
+
+        long allocated = 0;
+        for(int i=0; i<BATCHES; ++i) {
+            long before = mx.getThreadAllocatedBytes(sender.getId());
+            cycle(dump, stub, events);
+            allocated += mx.getThreadAllocatedBytes(sender.getId())-before;
+        }
+        dump.shutdown();
+
+        double perBatch = allocated/(double)BATCHES;
+        System.out.println(String.format("allocated %.0f bytes per batch of %d events, %.1f bytes per event",
+                perBatch, BATCH_SIZE, perBatch/BATCH_SIZE));
+
+        if(perBatch>BATCH_SIZE*BOXED_TIMESTAMP+CHUNK_VIEW) {
+            System.out.println("more than the boxed timestamps and the chunk were allocated");
+            System.exit(1);
+        }
+    }
+
+    /** Queues one batch, which is encoded by this thread, and waits until the sender handed it to the stub. */
+    private static void cycle(AwsCWEventDump aDump, StubAWSLogs aStub, LoggingEvent[] aEvents) {
+        long expected = aStub.received.get()+aEvents.length;
+        for(LoggingEvent event : aEvents) {
+            aDump.queue(event);
+        }
+        while(aStub.received.get()<expected) {
+            Thread.yield();
+        }
+    }
+}
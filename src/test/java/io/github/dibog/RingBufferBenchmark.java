@@ -0,0 +1,92 @@
+package io.github.dibog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Measures the hand-over latency and the CPU usage of the consumer for all wait strategies.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=io.github.dibog.RingBufferBenchmark -Dexec.classpathScope=test
+ */
+public class RingBufferBenchmark {
+
+    private static final int BURSTS = 200;
+    private static final int BURST_SIZE = 50;
+    private static final long PAUSE_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String[] strategies = {
+                WaitStrategy.BLOCKING,
+                WaitStrategy.SLEEPING,
+                WaitStrategy.YIELDING,
+                WaitStrategy.BUSY_SPIN,
+                WaitStrategy.PHASED
+        };
+
+        // warm up the JIT, so that the first strategy is not penalized
+        run(WaitStrategy.BLOCKING, false);
+
+        System.out.println(String.format("%-10s %12s %12s %12s", "strategy", "mean (us)", "p99 (us)", "cpu (ms)"));
+        for(String strategy : strategies) {
+            run(strategy, true);
+        }
+    }
+
+    private static void run(String aStrategy, boolean aReport) throws Exception {
+        final int total = BURSTS*BURST_SIZE;
+        final RingBuffer<Long> buffer = new RingBuffer<Long>(total, WaitStrategy.forName(aStrategy));
+        final long[] latencies = new long[total];
+        final long[] cpu = new long[1];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+                long cpuStart = mx.getCurrentThreadCpuTime();
+                List<Long> drained = new ArrayList<Long>();
+                int received = 0;
+                try {
+                    while(received<total) {
+                        buffer.drainTo(drained);
+                        long now = System.nanoTime();
+                        for(Long sent : drained) {
+                            latencies[received++] = now-sent;
+                        }
+                        drained.clear();
+                    }
+                }
+                catch(InterruptedException e) {
+                    // ignoring
+                }
+                cpu[0] = mx.getCurrentThreadCpuTime()-cpuStart;
+            }
+        });
+        consumer.start();
+
+        for(int burst=0; burst<BURSTS; ++burst) {
+            for(int i=0; i<BURST_SIZE; ++i) {
+                buffer.put(System.nanoTime());
+            }
+            Thread.sleep(PAUSE_MILLIS);
+        }
+        consumer.join();
+
+        if(!aReport) {
+            return;
+        }
+
+        Arrays.sort(latencies);
+        long sum = 0;
+        for(long latency : latencies) {
+            sum += latency;
+        }
+
+        System.out.println(String.format("%-10s %12.1f %12.1f %12d",
+                aStrategy,
+                sum/(double)total/1000.0,
+                latencies[(int)(total*0.99)]/1000.0,
+                cpu[0]/1000000));
+    }
+}